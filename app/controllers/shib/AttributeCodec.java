@@ -0,0 +1,269 @@
+package controllers.shib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import play.libs.Codec;
+import play.modules.shibboleth.ShibbolethConfig;
+
+/**
+ *
+ * Compact encoding of a user's attributes for storage in the session cookie,
+ * used when <code>shib.session.encoding = compact</code>. Instead of one
+ * session entry per attribute, all the attributes are packed into a single
+ * entry:
+ *
+ * <ul>
+ * <li>attribute names are replaced by their index in the configured
+ * shib.attribute.* mappings,</li>
+ * <li>multivalued attributes are stored split into their length prefixed
+ * values, without escaping,</li>
+ * <li>each distinct value is written once and repeats refer back to it,</li>
+ * <li>and the result is deflated and URL safe base64 encoded.</li>
+ * </ul>
+ *
+ * The encoding includes a fingerprint of the attribute mapping, values
+ * encoded under a different configuration are rejected rather than decoded
+ * under the wrong names.
+ */
+public final class AttributeCodec {
+
+	/** Prefix identifying version 1 of the encoding */
+	private static final String VERSION = "1";
+
+	/** The attribute was stored as its raw value */
+	private static final int RAW = 0;
+
+	/** The attribute was stored split into its values */
+	private static final int SPLIT = 1;
+
+	private AttributeCodec() {
+	}
+
+	/**
+	 * Encode a user's attributes.
+	 *
+	 * @param attributes
+	 *            Map of attribute names to their raw values.
+	 * @param config
+	 *            The configuration providing the attribute name dictionary.
+	 * @return The encoded attributes, safe to store in the session.
+	 */
+	public static String encode(Map<String, String> attributes,
+			ShibbolethConfig config) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(
+					new DeflaterOutputStream(bytes, new Deflater(
+							Deflater.BEST_COMPRESSION)));
+			Map<String, Integer> table = new HashMap<String, Integer>();
+
+			out.writeInt(config.attributeFingerprint);
+			writeVarint(out, attributes.size());
+			for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+				// Dictionary index, or 0 followed by the name if not mapped.
+				int index = config.attributeIndex(attribute.getKey());
+				writeVarint(out, index + 1);
+				if (index < 0)
+					writeString(out, attribute.getKey());
+
+				String raw = attribute.getValue();
+				List<String> values = Shibboleth.split(raw);
+				if (join(values).equals(raw)) {
+					out.writeByte(SPLIT);
+				} else {
+					// Splitting would lose something, keep it as is.
+					out.writeByte(RAW);
+					values = new ArrayList<String>(1);
+					values.add(raw);
+				}
+
+				writeVarint(out, values.size());
+				for (String value : values) {
+					// Back reference to an earlier value, or 0 and the value.
+					Integer reference = table.get(value);
+					if (reference != null) {
+						writeVarint(out, reference);
+					} else {
+						writeVarint(out, 0);
+						writeString(out, value);
+						table.put(value, table.size() + 1);
+					}
+				}
+			}
+			out.close();
+
+			String base64 = Codec.encodeBASE64(bytes.toByteArray());
+			StringBuilder encoded = new StringBuilder(base64.length() + 1);
+			encoded.append(VERSION);
+			for (int i = 0; i < base64.length(); i++) {
+				char c = base64.charAt(i);
+				if (c == '+')
+					encoded.append('-');
+				else if (c == '/')
+					encoded.append('_');
+				else if (c != '=' && c != '\n' && c != '\r')
+					encoded.append(c);
+			}
+			return encoded.toString();
+		} catch (IOException e) {
+			// Only writing to memory.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Decode a user's attributes.
+	 *
+	 * @param encoded
+	 *            The value returned by encode()
+	 * @param config
+	 *            The configuration providing the attribute name dictionary.
+	 * @return Map of attribute names to their raw values, or null if the
+	 *         encoded attributes could not be decoded with this configuration.
+	 */
+	public static Map<String, String> decode(String encoded,
+			ShibbolethConfig config) {
+		if (encoded == null || !encoded.startsWith(VERSION))
+			return null;
+
+		StringBuilder base64 = new StringBuilder(encoded.length() + 2);
+		for (int i = VERSION.length(); i < encoded.length(); i++) {
+			char c = encoded.charAt(i);
+			base64.append(c == '-' ? '+' : c == '_' ? '/' : c);
+		}
+		while (base64.length() % 4 != 0)
+			base64.append('=');
+
+		try {
+			DataInputStream in = new DataInputStream(new InflaterInputStream(
+					new ByteArrayInputStream(Codec.decodeBASE64(base64
+							.toString()))));
+			List<String> table = new ArrayList<String>();
+
+			if (in.readInt() != config.attributeFingerprint)
+				return null;
+
+			int count = readVarint(in);
+			Map<String, String> attributes = new HashMap<String, String>(
+					count * 2);
+			for (int i = 0; i < count; i++) {
+				int index = readVarint(in) - 1;
+				String name;
+				if (index < 0)
+					name = readString(in);
+				else if (index < config.attributeCount())
+					name = config.attributeName(index);
+				else
+					return null;
+
+				int form = in.readByte();
+				int size = readVarint(in);
+				List<String> values = new ArrayList<String>(size);
+				for (int j = 0; j < size; j++) {
+					int reference = readVarint(in);
+					if (reference == 0) {
+						String value = readString(in);
+						table.add(value);
+						values.add(value);
+					} else {
+						values.add(table.get(reference - 1));
+					}
+				}
+				attributes.put(name, form == SPLIT ? join(values) : values
+						.get(0));
+			}
+			return attributes;
+		} catch (Exception e) {
+			// Corrupt or truncated
+			return null;
+		}
+	}
+
+	/**
+	 * Join attribute values back into a multivalue shibboleth attribute,
+	 * escaping semicolons, and doubling the backslashes just before them or
+	 * at the end of a value followed by another. This is the reverse of
+	 * Shibboleth.split().
+	 *
+	 * @param values
+	 *            The attribute's values
+	 * @return The raw multivalue attribute.
+	 */
+	public static String join(List<String> values) {
+		if (values.size() == 1 && values.get(0).indexOf(';') < 0)
+			return values.get(0);
+
+		StringBuilder joined = new StringBuilder();
+		for (int v = 0; v < values.size(); v++) {
+			String value = values.get(v);
+			if (v > 0)
+				joined.append(';');
+			int slashes = 0;
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == ';') {
+					appendSlashes(joined, slashes);
+					joined.append('\\');
+				}
+				slashes = c == '\\' ? slashes + 1 : 0;
+				joined.append(c);
+			}
+			if (v < values.size() - 1)
+				appendSlashes(joined, slashes);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Double a run of backslashes just appended, as it comes before a
+	 * semicolon.
+	 */
+	private static void appendSlashes(StringBuilder joined, int slashes) {
+		for (int i = 0; i < slashes; i++)
+			joined.append('\\');
+	}
+
+	private static void writeVarint(DataOutputStream out, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readVarint(in)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,180 @@
+package controllers.shib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ *
+ * An immutable view of a user's Shibboleth attributes, see
+ * Shibboleth.attributes(). Multivalue attributes are split the first time
+ * they are used, so repeated lookups do not split the raw attribute again.
+ * The first test for a value compares it with the raw attribute in place,
+ * without splitting it, and later tests of the same attribute are hash
+ * lookups.
+ *
+ * For example, a Security.check() implementation can test a group membership
+ * with:
+ *
+ * <pre>
+ * Shibboleth.attributes().contains(&quot;isMemberOf&quot;, &quot;cn=admins,ou=groups,dc=example,dc=edu&quot;)
+ * </pre>
+ */
+public final class Attributes {
+
+	/** A user without any attributes */
+	public static final Attributes EMPTY = new Attributes(
+			Collections.<String, String> emptyMap());
+
+	/** The raw attribute values */
+	private final Map<String, String> raw;
+
+	/** The split values of each attribute used so far */
+	private final ConcurrentMap<String, Values> split = new ConcurrentHashMap<String, Values>();
+
+	/**
+	 * @param raw
+	 *            Map of attribute names to their raw (possibly multivalue)
+	 *            values.
+	 */
+	public Attributes(Map<String, String> raw) {
+		this.raw = Collections.unmodifiableMap(new HashMap<String, String>(raw));
+	}
+
+	/**
+	 * @return The names of the attributes the user has.
+	 */
+	public Set<String> names() {
+		return raw.keySet();
+	}
+
+	/**
+	 * @return True if the user has the attribute.
+	 */
+	public boolean has(String name) {
+		return raw.containsKey(name);
+	}
+
+	/**
+	 * @return The attribute's raw value, with multiple values still separated
+	 *         by semicolons, or null if the user does not have it.
+	 */
+	public String get(String name) {
+		return raw.get(name);
+	}
+
+	/**
+	 * @return The attribute's first value, or null if the user does not have
+	 *         it.
+	 */
+	public String first(String name) {
+		List<String> values = values(name);
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	/**
+	 * @return All the attribute's values, in order, or an empty list if the
+	 *         user does not have it.
+	 */
+	public List<String> values(String name) {
+		Values values = split(name);
+		return values == null ? Collections.<String> emptyList() : values.list;
+	}
+
+	/**
+	 * @return True if one of the attribute's values equals value.
+	 */
+	public boolean contains(String name, String value) {
+		Values values = split.get(name);
+		if (values == null) {
+			String attribute = raw.get(name);
+			if (attribute == null)
+				return false;
+			if (split.putIfAbsent(name, Values.SCANNED) == null)
+				return scan(attribute, value);
+		}
+		values = split(name);
+		return values != null && values.set.contains(value);
+	}
+
+	/**
+	 * @return The raw attribute values, as a map of names to values.
+	 */
+	public Map<String, String> toMap() {
+		return raw;
+	}
+
+	@Override
+	public String toString() {
+		return raw.toString();
+	}
+
+	/**
+	 * Split an attribute, the first time it is used.
+	 */
+	private Values split(String name) {
+		Values values = split.get(name);
+		if (values == null || values == Values.SCANNED) {
+			String value = raw.get(name);
+			if (value == null)
+				return null;
+			values = new Values(Shibboleth.split(value,
+					new ArrayList<String>()));
+			split.put(name, values);
+		}
+		return values;
+	}
+
+	/**
+	 * Test a raw attribute for a value without splitting it, comparing the
+	 * value with each of the attribute's values in place. Only an attribute
+	 * with an escaped semicolon is split, see Shibboleth.split().
+	 *
+	 * @return True if one of the attribute's values equals value.
+	 */
+	static boolean scan(String attribute, final String value) {
+		int length = value.length();
+		int start = 0;
+		for (;;) {
+			int end = attribute.indexOf(';', start);
+			if (end > 0 && attribute.charAt(end - 1) == '\\') {
+				return !Shibboleth.split(attribute, new Shibboleth.ValueHandler() {
+					public boolean value(String candidate) {
+						return !candidate.equals(value);
+					}
+				});
+			}
+			int stop = end < 0 ? attribute.length() : end;
+			if (length > 0 && stop - start == length
+					&& attribute.regionMatches(start, value, 0, length))
+				return true;
+			if (end < 0)
+				return false;
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * The split values of a single attribute.
+	 */
+	private static final class Values {
+
+		/** Marks an attribute tested once, by scan(), but not yet split */
+		static final Values SCANNED = new Values(Collections.<String> emptyList());
+
+		final List<String> list;
+
+		final Set<String> set;
+
+		Values(List<String> values) {
+			list = Collections.unmodifiableList(values);
+			set = new HashSet<String>(values);
+		}
+	}
+}
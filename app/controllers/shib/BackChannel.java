@@ -0,0 +1,60 @@
+package controllers.shib;
+
+import java.security.MessageDigest;
+
+import play.Logger;
+import play.modules.shibboleth.RevocationRegistry;
+import play.modules.shibboleth.ShibbolethConfig;
+import play.mvc.Controller;
+
+/**
+ *
+ * Back-channel logout: lets the identity provider, or an administrator's
+ * script, end users' sessions without the user's browser. Disabled unless
+ * <code>shib.logout.secret</code> is set.
+ */
+public class BackChannel extends Controller {
+
+	/**
+	 * Revoke every login by a principal, or the login with a session id (the
+	 * Shibboleth session id, see shib.session.header), made until now. The
+	 * shared secret must be posted as the <code>secret</code> parameter.
+	 *
+	 * @param principal
+	 *            The user's principal, see shib.principal
+	 * @param session
+	 *            The session id.
+	 */
+	public static void logout(String principal, String session) {
+		String secret = ShibbolethConfig.current().logoutSecret;
+		if (secret == null)
+			notFound();
+		if (!matches(secret, params.get("secret"))) {
+			Logger.warn("Shib: Refused a back-channel logout from "
+					+ request.remoteAddress + " with the wrong secret.");
+			forbidden();
+		}
+		if (principal == null && session == null)
+			badRequest();
+
+		RevocationRegistry.revokePrincipal(principal);
+		RevocationRegistry.revokeSession(session);
+		Logger.info("Shib: Revoked logins by back-channel logout, principal: "
+				+ principal + ", session: " + session);
+		ok();
+	}
+
+	/**
+	 * Compare the secrets in constant time.
+	 */
+	static boolean matches(String secret, String given) {
+		if (given == null)
+			return false;
+		try {
+			return MessageDigest.isEqual(secret.getBytes("UTF-8"),
+					given.getBytes("UTF-8"));
+		} catch (java.io.UnsupportedEncodingException e) {
+			return false;
+		}
+	}
+}
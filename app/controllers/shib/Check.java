@@ -16,4 +16,14 @@ import java.lang.annotation.Target;
 public @interface Check {
 
     String[] value();
+
+    /**
+     * Whether the user needs all of the profiles (the default) or any one of
+     * them.
+     */
+    Mode mode() default Mode.ALL;
+
+    enum Mode {
+        ALL, ANY
+    }
 }
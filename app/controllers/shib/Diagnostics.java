@@ -0,0 +1,89 @@
+package controllers.shib;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import play.Logger;
+import play.Play;
+import play.modules.shibboleth.HeaderCapture;
+import play.modules.shibboleth.Metrics;
+import play.modules.shibboleth.ShibbolethConfig;
+import play.mvc.Before;
+import play.mvc.Controller;
+import play.mvc.Http.Header;
+
+/**
+ * 
+ * Operational views of the Shibboleth module. These are only available to
+ * the remote addresses listed in <code>shib.diagnostics.allow</code>, by
+ * default no one. Behind a proxy every request comes from the proxy's
+ * address, so Play's <code>XForwardedSupport</code> must be enabled for the
+ * list to mean anything.
+ */
+public class Diagnostics extends Controller {
+
+	/**
+	 * Refuse anyone not on the allowed list.
+	 */
+	@Before
+	static void checkAllowed() {
+		if (!ShibbolethConfig.current().diagnosticsAllow
+				.contains(request.remoteAddress))
+			forbidden();
+	}
+
+	/**
+	 * The module's metrics, in the Prometheus text format. Requires
+	 * <code>shib.metrics = true</code>.
+	 */
+	public static void metrics() {
+		if (!Metrics.isEnabled())
+			notFound();
+
+		StringBuilder out = new StringBuilder(8192);
+		Metrics.write(out);
+		response.contentType = "text/plain; version=0.0.4";
+		renderText(out.toString());
+	}
+
+	/** Request header carrying shib.diagnostics.secret */
+	static final String SECRET_HEADER = "x-shibboleth-secret";
+
+	/**
+	 * The headers captured from recent logins, newest first. See
+	 * HeaderCapture. As these hold users' personal data, they are only shown
+	 * in DEV mode, or with the secret set in shib.diagnostics.secret sent in
+	 * the X-Shibboleth-Secret header.
+	 */
+	public static void headers() {
+		HeaderCapture capture = HeaderCapture.current();
+		if (capture == null)
+			notFound();
+		if (!Play.mode.isDev()) {
+			String secret = ShibbolethConfig.current().diagnosticsSecret;
+			if (secret == null)
+				notFound();
+			Header given = request.headers.get(SECRET_HEADER);
+			if (!BackChannel.matches(secret, given == null ? null : given.value())) {
+				Logger.warn("Shib: Refused the captured headers to "
+						+ request.remoteAddress + " with the wrong secret.");
+				forbidden();
+			}
+		}
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		StringBuilder out = new StringBuilder(8192);
+		for (HeaderCapture.Capture login : capture.captures()) {
+			out.append(format.format(new Date(login.time))).append(' ')
+					.append(login.remoteAddress).append(' ')
+					.append(login.reason).append('\n');
+			for (int i = 0; i < login.names.length; i++) {
+				for (String value : login.values[i])
+					out.append("    ").append(login.names[i]).append(": ")
+							.append(value).append('\n');
+			}
+			out.append('\n');
+		}
+		renderText(out.toString());
+	}
+}
@@ -0,0 +1,215 @@
+package controllers.shib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.yaml.snakeyaml.Yaml;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.ConfigurationException;
+import play.mvc.Http.Header;
+
+/**
+ *
+ * A pool of mock identities, so that many distinct simulated users can log in
+ * at once while Shibboleth is mocked, i.e. for load testing. The pool is
+ * either loaded from a fixture or generated:
+ *
+ * <pre>
+ * shib.identities = conf/identities.yml
+ * </pre>
+ *
+ * A YAML fixture is a list of identities, each mapping HTTP headers to a value
+ * or a list of values. A .properties fixture keys each header by the
+ * identity's number, i.e. <code>0.SHIB_email = someone@your-domain.net</code>.
+ *
+ * <pre>
+ * shib.identities.generate = 1000
+ * shib.identities.multivalue.SHIB_isMemberOf = 50
+ * </pre>
+ *
+ * Generated identities copy the shib.mock.* headers, replacing
+ * <code>{n}</code> with the identity's number, and give each listed header
+ * that many values drawn from an overlapping range.
+ *
+ * Each login picks the identity named by the <code>identity</code> request
+ * parameter (see shib.identities.param), or otherwise the next in turn.
+ */
+public final class MockIdentityPool {
+
+	/** Configuration prefix for the pool */
+	private static final String PREFIX = "shib.identities";
+
+	/** The identities, each a map of HTTP headers, never modified */
+	private final List<Map<String, Header>> identities;
+
+	/** The request parameter naming an identity */
+	final String param;
+
+	/** The next identity for round-robin selection */
+	private final AtomicInteger next = new AtomicInteger();
+
+	private MockIdentityPool(List<Map<String, Header>> identities, String param) {
+		this.identities = identities;
+		this.param = param;
+	}
+
+	/**
+	 * @return The number of identities in the pool.
+	 */
+	public int size() {
+		return identities.size();
+	}
+
+	/**
+	 * @param name
+	 *            The identity's number, or null for the next in turn.
+	 * @return The identity's headers.
+	 */
+	public Map<String, Header> select(String name) {
+		int index;
+		if (name != null) {
+			try {
+				index = Integer.parseInt(name);
+			} catch (NumberFormatException e) {
+				index = name.hashCode();
+			}
+		} else {
+			index = next.getAndIncrement();
+		}
+		index %= identities.size();
+		return identities.get(index < 0 ? index + identities.size() : index);
+	}
+
+	/**
+	 * Build the pool from the configuration.
+	 *
+	 * @return The pool, or null if no pool is configured.
+	 */
+	static MockIdentityPool load(Properties configuration,
+			Map<String, Header> template) {
+		String fixture = configuration.getProperty(PREFIX);
+		int generate = Integer.parseInt(configuration.getProperty(PREFIX
+				+ ".generate", "0"));
+		String param = configuration.getProperty(PREFIX + ".param", "identity");
+
+		List<Map<String, Header>> identities;
+		if (fixture != null)
+			identities = read(Play.getFile(fixture));
+		else if (generate > 0)
+			identities = generate(generate, template, configuration);
+		else
+			return null;
+
+		if (identities.isEmpty())
+			throw new ConfigurationException("No mock identities in " + fixture);
+		Logger.debug("Shib: Loaded " + identities.size() + " mock identities.");
+		return new MockIdentityPool(Collections.unmodifiableList(identities), param);
+	}
+
+	/**
+	 * Read identities from a YAML or properties fixture.
+	 */
+	private static List<Map<String, Header>> read(File file) {
+		List<Map<String, Header>> identities = new ArrayList<Map<String, Header>>();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			if (file.getName().endsWith(".properties")) {
+				Properties properties = new Properties();
+				properties.load(in);
+				Map<Integer, Map<String, Object>> numbered = new TreeMap<Integer, Map<String, Object>>();
+				for (String key : properties.stringPropertyNames()) {
+					int dot = key.indexOf('.');
+					Integer number = Integer.valueOf(key.substring(0, dot));
+					Map<String, Object> identity = numbered.get(number);
+					if (identity == null) {
+						identity = new HashMap<String, Object>();
+						numbered.put(number, identity);
+					}
+					identity.put(key.substring(dot + 1), properties.getProperty(key));
+				}
+				for (Map<String, Object> identity : numbered.values())
+					identities.add(headers(identity));
+			} else {
+				for (Object identity : (List<?>) new Yaml().load(in))
+					identities.add(headers((Map<?, ?>) identity));
+			}
+		} catch (IOException e) {
+			throw new ConfigurationException("Unable to read mock identities from " + file + ", " + e);
+		} catch (RuntimeException e) {
+			throw new ConfigurationException("Unable to parse mock identities in " + file + ", " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Only reading.
+				}
+			}
+		}
+		return identities;
+	}
+
+	/**
+	 * Generate identities from the shib.mock.* headers.
+	 */
+	private static List<Map<String, Header>> generate(int count,
+			Map<String, Header> template, Properties configuration) {
+		Map<String, Integer> multivalue = new HashMap<String, Integer>();
+		String multivaluePrefix = PREFIX + ".multivalue.";
+		for (String key : configuration.stringPropertyNames()) {
+			if (key.startsWith(multivaluePrefix))
+				multivalue.put(key.substring(multivaluePrefix.length()),
+						Integer.valueOf(configuration.getProperty(key)));
+		}
+
+		List<Map<String, Header>> identities = new ArrayList<Map<String, Header>>(count);
+		for (int n = 0; n < count; n++) {
+			Map<String, Object> identity = new HashMap<String, Object>();
+			for (Header header : template.values())
+				identity.put(header.name, header.value().replace("{n}", String.valueOf(n)));
+			for (Map.Entry<String, Integer> entry : multivalue.entrySet()) {
+				// Overlapping values, so identities share some but not all.
+				int size = entry.getValue();
+				List<String> values = new ArrayList<String>(size);
+				for (int i = 0; i < size; i++)
+					values.add("urn:mock:" + entry.getKey() + ":" + ((n + i) % (size * 4)));
+				identity.put(entry.getKey(), values);
+			}
+			identities.add(headers(identity));
+		}
+		return identities;
+	}
+
+	/**
+	 * Turn an identity's values into headers, joining multiple values as
+	 * Shibboleth does.
+	 */
+	private static Map<String, Header> headers(Map<?, ?> identity) {
+		Map<String, Header> headers = new HashMap<String, Header>();
+		for (Map.Entry<?, ?> entry : identity.entrySet()) {
+			String name = String.valueOf(entry.getKey());
+			Object value = entry.getValue();
+			if (value instanceof List) {
+				List<String> values = new ArrayList<String>();
+				for (Object item : (List<?>) value)
+					values.add(String.valueOf(item));
+				value = AttributeCodec.join(values);
+			}
+			headers.put(name, new Header(name, value == null ? "" : String.valueOf(value)));
+		}
+		return Collections.unmodifiableMap(headers);
+	}
+}
@@ -1,12 +1,13 @@
 package controllers.shib;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import play.Logger;
 import play.Play;
 import play.jobs.OnApplicationStart;
+import play.mvc.Http;
 import play.mvc.Http.Header;
 
 
@@ -18,12 +19,24 @@ import play.mvc.Http.Header;
  * HTTP attributes. The class is designed so that individual test cases may
  * modify these headers as needed for each particular test.
  * 
+ * If a pool of mock identities is configured, see MockIdentityPool, each login
+ * uses one of the pool's identities instead.
+ * 
  * @author Scott Phillips, http://www.scottphillips.com/
  */
 public class MockShibboleth {
 
 	/** A mock set of HTTP headers */
-	public static Map<String, Header> headers = null;
+	public static volatile Map<String, Header> headers = null;
+
+	/** The request arg holding the identity selected for the request */
+	private static final String IDENTITY = "shib.identity";
+
+	/** The pool of mock identities, or null if there is none */
+	private static volatile MockIdentityPool pool = null;
+
+	/** Has the pool been loaded from the configuration? */
+	private static volatile boolean poolLoaded = false;
 
 	/**
 	 * Convenience method for retrieving a mock HTTP header.
@@ -33,9 +46,47 @@ public class MockShibboleth {
 	 * @return The Play MVC Header object.
 	 */
 	public static Header get(String name) {
-		if (headers == null)
-			reload();
-		return headers.get(name);
+		return headers().get(name);
+	}
+
+	/**
+	 * The mock headers for the current login: an identity from the pool if
+	 * there is one, otherwise the mock headers. The identity is selected once
+	 * per request and kept in the request's args, so every header read while
+	 * logging in comes from the same identity.
+	 * 
+	 * @return Map of HTTP header names to headers.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Header> current() {
+		MockIdentityPool pool = pool();
+		if (pool == null)
+			return headers();
+
+		Http.Request request = Http.Request.current();
+		if (request == null)
+			return pool.select(null);
+		Map<String, Header> identity = (Map<String, Header>) request.args.get(IDENTITY);
+		if (identity == null) {
+			identity = pool.select(request.params.get(pool.param));
+			request.args.put(IDENTITY, identity);
+		}
+		return identity;
+	}
+
+	/**
+	 * @return The pool of mock identities, or null if none is configured.
+	 */
+	public static MockIdentityPool pool() {
+		if (!poolLoaded) {
+			synchronized (MockShibboleth.class) {
+				if (!poolLoaded) {
+					pool = MockIdentityPool.load(Play.configuration, headers());
+					poolLoaded = true;
+				}
+			}
+		}
+		return pool;
 	}
 
 	/**
@@ -47,11 +98,13 @@ public class MockShibboleth {
 	 *            The value of the HTTP header, will be removed if null.
 	 */
 	public static Header set(String name, String value) {
-		if (value == null)
-			headers.remove(name);
+		if (value == null) {
+			headers().remove(name);
+			return null;
+		}
 
 		Header header = new Header(name, value);
-		headers.put(name, header);
+		headers().put(name, header);
 
 		return header;
 	}
@@ -70,18 +123,19 @@ public class MockShibboleth {
 	 * Convenience method for resetting all mock headers.
 	 */
 	public static void removeAll() {
-		headers = new HashMap<String, Header>();
+		headers = new ConcurrentHashMap<String, Header>();
 	}
 
 	/**
 	 * Convenience method to reload the all the mock headers defined the
-	 * applications.conf file. Look at anything of the form:
+	 * applications.conf file, along with the pool of mock identities. Look at
+	 * anything of the form:
 	 * 
 	 * shib.mock.<HTTP Header> = <Header Value>
 	 */
 	public static Map<String, Header> reload() {
 
-		Map<String, Header> mockHeaders = new HashMap<String, Header>();
+		Map<String, Header> mockHeaders = new ConcurrentHashMap<String, Header>();
 
 		Set<Object> keys = Play.configuration.keySet();
 		for (Object keyObj : keys) {
@@ -99,7 +153,21 @@ public class MockShibboleth {
 		}
 
 		headers = mockHeaders;
+		synchronized (MockShibboleth.class) {
+			poolLoaded = false;
+			pool = null;
+		}
 		return mockHeaders;
 	}
 
+	/**
+	 * @return The mock headers, loading them if they have not been yet.
+	 */
+	private static Map<String, Header> headers() {
+		Map<String, Header> current = headers;
+		if (current == null)
+			current = reload();
+		return current;
+	}
+
 }
@@ -1,11 +1,26 @@
 package controllers.shib;
 
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
+import play.Logger;
 import play.Play;
+import play.jobs.Job;
+import play.libs.F.Promise;
+import play.modules.shibboleth.EnrichmentCache;
+import play.modules.shibboleth.Metrics;
+import play.modules.shibboleth.ProfileRules;
+import play.modules.shibboleth.ShibbolethConfig;
 import play.mvc.*;
 import play.data.validation.*;
 import play.libs.*;
@@ -37,24 +52,68 @@ public class Security extends Controller {
 			return false;
 	}
 
+	/**
+	 * This method checks several profiles at once, for applications that can
+	 * answer them all from a single lookup. It is called when an action's
+	 * @Check annotation names two or more profiles that are left to the
+	 * check() hook and have not already been decided during the request.
+	 * 
+	 * @param profiles
+	 * @return Each profile's result, or null (the default) to call
+	 *         check(profile) for each profile as it is needed. Profiles
+	 *         missing from the map are also left to check(profile).
+	 */
+	static Map<String, Boolean> checkAll(String[] profiles) {
+		return null;
+	}
+
+	/**
+	 * This method indicates whether the result of check(profile) may be
+	 * reused for the remainder of the current request. By default every check
+	 * is evaluated at most once per request, override this method to return
+	 * false for profiles whose checks are not deterministic.
+	 * 
+	 * @param profile
+	 * @return true if the check's result may be cached for this request.
+	 */
+	static boolean isCheckCacheable(String profile) {
+		return true;
+	}
+
 	/**
 	 * Indicate if a user is currently connected
 	 * 
 	 * @return true if the user is connected
 	 */
 	static boolean isConnected() {
-		return session.contains("shibboleth");
+		return Shibboleth.isAuthenticated();
 	}
 
 	/**
 	 * This method is called after a successful authentication. The user's
-	 * attributes will already be stored in the session object. Use this method
+	 * attributes will already be available from Shibboleth.getAttribute(),
+	 * and unless an attribute store is configured, the session. Use this method
 	 * if you require complex attribute strategies or need to sync the data with
 	 * an external data source.
 	 */
 	static void onAuthenticated() {
 	}
 
+	/**
+	 * This method is called after onAuthenticated(), for work that should not
+	 * hold up a request thread, such as a slow directory or database sync.
+	 * Return a promise for work the next page depends on and the login will
+	 * wait for it to complete, suspending the request rather than blocking
+	 * it. Work the next page does not need can simply be started with
+	 * inBackground() and not returned. Logins made by checkAccess(), inline or
+	 * when shib.login is false, can not be suspended and never wait.
+	 * 
+	 * @return A promise to wait for before the user is sent on, or null.
+	 */
+	static Promise<?> onAuthenticatedAsync() {
+		return null;
+	}
+
 	/**
 	 * This method is called before a user tries to sign off.
 	 */
@@ -88,19 +147,423 @@ public class Security extends Controller {
 		error("Authentication Failure");
 	}
 
-	protected static Object invoke(String m, Object... args) throws Throwable {
-		Class security = null;
-		List<Class> classes = Play.classloader
-				.getAssignableClasses(Security.class);
-		if (classes.size() == 0) {
-			security = Security.class;
-		} else {
-			security = classes.get(0);
+	/**
+	 * Run a task from a hook as a Play job, without holding up the request.
+	 * At most shib.hooks.pending tasks (100 by default) may be waiting or
+	 * running at once, beyond that tasks are refused rather than queued.
+	 * 
+	 * @param task
+	 *            The work to do in the background.
+	 * @return A promise of the task's result, which fails with a
+	 *         RejectedExecutionException if too many tasks are pending.
+	 */
+	protected static <T> Promise<T> inBackground(final Callable<T> task) {
+		final Semaphore pending = ShibbolethConfig.current().hookPermits;
+		if (!pending.tryAcquire()) {
+			Logger.warn("Shib: Too many background hook tasks pending, refusing another.");
+			Promise<T> refused = new Promise<T>();
+			refused.invokeWithException(new RejectedExecutionException(
+					"Too many background hook tasks pending"));
+			return refused;
 		}
 		try {
-			return Java.invokeStaticOrParent(security, m, args);
+			return new Job<T>() {
+				@Override
+				public T doJobWithResult() throws Exception {
+					try {
+						return task.call();
+					} finally {
+						pending.release();
+					}
+				}
+			}.now();
+		} catch (RuntimeException e) {
+			pending.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get a value for the current user from a cache keyed by their principal
+	 * (see shib.principal), loading it if it is not cached. Concurrent logins
+	 * by the same user share a single load. If the user has no principal the
+	 * value is loaded every time.
+	 * 
+	 * @param cache
+	 *            The cache, see EnrichmentCache.create()
+	 * @param loader
+	 *            Loads the value for the current user.
+	 * @return The value.
+	 */
+	protected static <V> V enrich(EnrichmentCache<V> cache, Callable<V> loader)
+			throws Exception {
+		String principal = Shibboleth.getPrincipal();
+		return principal == null ? loader.call() : cache.get(principal, loader);
+	}
+
+	/** Request argument holding the check decisions made during the request */
+	private static final String CHECKS = "shib.checks";
+
+	/**
+	 * Check that the current user has a profile. Profiles declared by
+	 * shib.profile.* rules are evaluated directly, any other profile is left to
+	 * the check() hook. Either way a profile is evaluated at most once per
+	 * request, unless the isCheckCacheable() hook says otherwise. This is used
+	 * for both the @Check annotation and the shibboleth.check tag.
+	 * 
+	 * @param profile
+	 * @return true if the user has the profile.
+	 */
+	public static boolean checkProfile(String profile) throws Throwable {
+		return checkProfile(profile, decisions(), null);
+	}
+
+	/**
+	 * Check that the current user has all, or any, of an action's profiles.
+	 * The checkAll() hook is given the chance to answer the profiles at once,
+	 * then they are evaluated in order of their cost per decisive result so
+	 * far (a failure for all, a pass for any), stopping as soon as the outcome
+	 * is known.
+	 * 
+	 * @param profiles
+	 *            The profiles, at least one.
+	 * @param any
+	 *            Is any one of the profiles enough?
+	 * @return null if the user passes, otherwise the profile to report as
+	 *         failed: the failing profile, or for any the first profile.
+	 */
+	static String checkProfiles(String[] profiles, boolean any)
+			throws Throwable {
+		Map<String, Boolean> decisions = decisions();
+		Map<String, Boolean> answered = checkAll(profiles, decisions);
+		for (String profile : order(profiles, any, decisions, answered)) {
+			if (checkProfile(profile, decisions, answered) == any)
+				return any ? null : profile;
+		}
+		return any ? profiles[0] : null;
+	}
+
+	/**
+	 * Check a profile, using the decision already made during this request
+	 * or by the checkAll() hook if there is one.
+	 */
+	private static boolean checkProfile(String profile,
+			Map<String, Boolean> decisions, Map<String, Boolean> answered)
+			throws Throwable {
+		ProfileRules.Rule rule = ShibbolethConfig.current().profiles.rule(profile);
+		Boolean decision = decisions == null ? null : decisions.get(profile);
+		if (decision == null) {
+			decision = answered == null ? null : answered.get(profile);
+			if (decision == null) {
+				long started = System.nanoTime();
+				decision = rule != null ? matches(rule) : (Boolean) invoke("check", profile);
+				observe(profile, System.nanoTime() - started, decision);
+			}
+			if (decisions != null
+					&& isCacheable(rule != null ? ShibbolethConfig.current().profiles
+							.checks(profile) : new String[] { profile }))
+				decisions.put(profile, decision);
+		}
+		Metrics.CHECKS.increment(profile, decision ? 0 : 1);
+		return decision;
+	}
+
+	/**
+	 * @return True if the isCheckCacheable() hook allows every one of the
+	 *         profiles' checks to be reused. A rule is as cacheable as the
+	 *         checks it refers to.
+	 */
+	private static boolean isCacheable(String[] profiles) throws Throwable {
+		for (String profile : profiles) {
+			if (!(Boolean) invoke("isCheckCacheable", profile))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The check decisions made during the current request, or null
+	 *         outside of a request.
+	 */
+	private static Map<String, Boolean> decisions() {
+		Http.Request current = Http.Request.current();
+		if (current == null)
+			return null;
+		Map<String, Boolean> decisions = (Map<String, Boolean>) current.args.get(CHECKS);
+		if (decisions == null) {
+			decisions = new HashMap<String, Boolean>();
+			current.args.put(CHECKS, decisions);
+		}
+		return decisions;
+	}
+
+	/**
+	 * Ask the application's checkAll() hook, if it has one, about the
+	 * profiles left to the check() hook and not yet decided.
+	 * 
+	 * @return The hook's answers, or null.
+	 */
+	private static Map<String, Boolean> checkAll(String[] profiles,
+			Map<String, Boolean> decisions) throws Throwable {
+		if (profiles.length < 2 || !hooks().overrides("checkAll"))
+			return null;
+		ProfileRules rules = ShibbolethConfig.current().profiles;
+		List<String> undecided = new ArrayList<String>(profiles.length);
+		for (String profile : profiles) {
+			if (rules.rule(profile) == null
+					&& (decisions == null || !decisions.containsKey(profile)))
+				undecided.add(profile);
+		}
+		if (undecided.size() < 2)
+			return null;
+		return (Map<String, Boolean>) invoke("checkAll",
+				(Object) undecided.toArray(new String[undecided.size()]));
+	}
+
+	/** The most profiles whose evaluations are observed */
+	private static final int MAX_OBSERVED = 1000;
+
+	/** How each profile's evaluations have gone so far, see order() */
+	private static final ConcurrentMap<String, Observed> observed = new ConcurrentHashMap<String, Observed>();
+
+	/**
+	 * Moving averages of a profile's evaluation time and result. Updates
+	 * from concurrent requests may be lost, the averages only guide the
+	 * order of evaluation.
+	 */
+	private static final class Observed {
+		volatile double nanos;
+		volatile double passes;
+
+		Observed(long nanos, boolean passed) {
+			this.nanos = nanos;
+			this.passes = passed ? 1 : 0;
+		}
+
+		void add(long nanos, boolean passed) {
+			this.nanos += (nanos - this.nanos) / 16;
+			this.passes += ((passed ? 1 : 0) - this.passes) / 16;
+		}
+	}
+
+	/**
+	 * Record how long a profile took to evaluate, and the result.
+	 */
+	private static void observe(String profile, long nanos, boolean passed) {
+		Observed current = observed.get(profile);
+		if (current != null)
+			current.add(nanos, passed);
+		else if (observed.size() < MAX_OBSERVED)
+			observed.putIfAbsent(profile, new Observed(nanos, passed));
+	}
+
+	/**
+	 * Order profiles by their expected cost per decisive result, lowest
+	 * first. Profiles already decided cost nothing, and profiles never
+	 * evaluated go early so that they are observed, otherwise the declared
+	 * order is kept.
+	 */
+	private static String[] order(String[] profiles, boolean any,
+			Map<String, Boolean> decisions, Map<String, Boolean> answered) {
+		if (profiles.length < 2)
+			return profiles;
+		String[] ordered = profiles.clone();
+		double[] scores = new double[ordered.length];
+		for (int i = 0; i < ordered.length; i++) {
+			String profile = ordered[i];
+			Observed seen = observed.get(profile);
+			if ((decisions != null && decisions.containsKey(profile))
+					|| (answered != null && answered.containsKey(profile)))
+				scores[i] = -1;
+			else if (seen == null)
+				scores[i] = 0;
+			else
+				scores[i] = seen.nanos
+						/ Math.max(any ? seen.passes : 1 - seen.passes, 0.01);
+		}
+
+		// Insertion sort, actions only check a few profiles.
+		for (int i = 1; i < ordered.length; i++) {
+			String profile = ordered[i];
+			double score = scores[i];
+			int j = i;
+			for (; j > 0 && scores[j - 1] > score; j--) {
+				ordered[j] = ordered[j - 1];
+				scores[j] = scores[j - 1];
+			}
+			ordered[j] = profile;
+			scores[j] = score;
+		}
+		return ordered;
+	}
+
+	/**
+	 * Evaluate a declared profile's rule against the current user, who must
+	 * be authenticated.
+	 */
+	private static boolean matches(ProfileRules.Rule rule) throws Throwable {
+		if (!Shibboleth.isAuthenticated())
+			return false;
+		return rule.matches(new RuleContext(Shibboleth.attributes()));
+	}
+
+	/**
+	 * Forget the check decisions made so far during this request, because the
+	 * user has just logged in or out.
+	 */
+	static void clearCheckCache() {
+		Http.Request current = Http.Request.current();
+		if (current != null)
+			current.args.remove(CHECKS);
+	}
+
+	/**
+	 * Invoke one of the hooks above on the application's Security class, or
+	 * this class if the application does not extend it.
+	 * 
+	 * @param m
+	 *            The name of the hook
+	 * @param args
+	 *            The hook's arguments
+	 * @return The hook's return value
+	 */
+	protected static Object invoke(String m, Object... args) throws Throwable {
+		Hooks hooks = hooks();
+		Method method = hooks.methods.get(m);
+		long started = Metrics.start();
+		try {
+			if (method != null && method.getParameterTypes().length == args.length)
+				return method.invoke(null, args);
+			return Java.invokeStaticOrParent(hooks.security, m, args);
 		} catch (InvocationTargetException e) {
 			throw e.getTargetException();
+		} finally {
+			Metrics.HOOKS.record(m, started);
+		}
+	}
+
+	/**
+	 * Evaluates rules against the current user's attributes, with references
+	 * to other profiles going back through checkProfile().
+	 */
+	private static final class RuleContext implements ProfileRules.Context {
+		private final Attributes attributes;
+
+		RuleContext(Attributes attributes) {
+			this.attributes = attributes;
+		}
+
+		public boolean contains(String attribute, String value) {
+			return attributes.contains(attribute, value);
+		}
+
+		public boolean hasProfile(String profile) throws Throwable {
+			return checkProfile(profile);
+		}
+
+		public boolean check(String profile) throws Throwable {
+			return (Boolean) invoke("check", profile);
+		}
+	}
+
+	/** The resolved hooks, valid for one application classloader state */
+	private static volatile Hooks hooks = null;
+
+	/**
+	 * @return The hooks resolved for the current application classloader,
+	 *         resolving them again if the classes have been reloaded.
+	 */
+	private static Hooks hooks() {
+		Hooks current = hooks;
+		if (current == null || !current.isValid()) {
+			current = new Hooks();
+			hooks = current;
+		}
+		return current;
+	}
+
+	/**
+	 * The application's Security class, along with each hook bound to the
+	 * most specific static method implementing it.
+	 */
+	private static final class Hooks {
+
+		/** Hook names and their parameter types */
+		private static final Object[][] SIGNATURES = {
+				{ "check", new Class[] { String.class } },
+				{ "checkAll", new Class[] { String[].class } },
+				{ "isCheckCacheable", new Class[] { String.class } },
+				{ "isConnected", new Class[] {} },
+				{ "onAuthenticated", new Class[] {} },
+				{ "onAuthenticatedAsync", new Class[] {} },
+				{ "onDisconnect", new Class[] {} },
+				{ "onDisconnected", new Class[] {} },
+				{ "onCheckFailed", new Class[] { String.class } },
+				{ "onAttributeFailure", new Class[] { HashMap.class } } };
+
+		final ClassLoader classloader;
+		final Object state;
+		final Class security;
+		final Map<String, Method> methods = new HashMap<String, Method>();
+
+		Hooks() {
+			classloader = Play.classloader;
+			state = Play.classloader.currentState;
+
+			List<Class> classes = Play.classloader
+					.getAssignableClasses(Security.class);
+			if (classes.size() == 0) {
+				security = Security.class;
+			} else {
+				security = classes.get(0);
+			}
+
+			for (Object[] signature : SIGNATURES) {
+				String name = (String) signature[0];
+				Method method = findStatic(security, name,
+						(Class[]) signature[1]);
+				if (method != null)
+					methods.put(name, method);
+			}
+		}
+
+		/**
+		 * @return True if the application classes have not been reloaded
+		 *         since these hooks were resolved.
+		 */
+		boolean isValid() {
+			return classloader == Play.classloader
+					&& state.equals(Play.classloader.currentState);
+		}
+
+		/**
+		 * @return True if the application's Security class implements the
+		 *         hook, rather than inheriting the default.
+		 */
+		boolean overrides(String name) {
+			Method method = methods.get(name);
+			return method != null && method.getDeclaringClass() != Security.class;
+		}
+
+		/**
+		 * Find the static method declared by the class or it's closest
+		 * parent.
+		 */
+		private static Method findStatic(Class clazz, String name,
+				Class[] types) {
+			while (clazz != null && clazz != Object.class) {
+				try {
+					Method method = clazz.getDeclaredMethod(name, types);
+					if (Modifier.isStatic(method.getModifiers())) {
+						method.setAccessible(true);
+						return method;
+					}
+				} catch (NoSuchMethodException e) {
+					// Try the parent.
+				}
+				clazz = clazz.getSuperclass();
+			}
+			return null;
 		}
 	}
 
@@ -3,21 +3,36 @@ package controllers.shib;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Date;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.internal.runners.statements.Fail;
 
 import play.Logger;
 import play.Play;
-import play.Play.Mode;
 import play.data.validation.Required;
+import play.libs.Codec;
 import play.libs.Crypto;
+import play.libs.F;
+import play.libs.F.Promise;
+import play.modules.shibboleth.AttributeStore;
+import play.modules.shibboleth.AttributeTransform;
+import play.modules.shibboleth.AuditEvent;
+import play.modules.shibboleth.AuditLog;
+import play.modules.shibboleth.HeaderCapture;
+import play.modules.shibboleth.LoginThrottle;
+import play.modules.shibboleth.Metrics;
+import play.modules.shibboleth.RevocationRegistry;
+import play.modules.shibboleth.ShibbolethConfig;
+import play.modules.shibboleth.ShibbolethPlugin;
+import play.modules.shibboleth.UserRecord;
+import play.modules.shibboleth.WriteBehind;
 import play.mvc.Before;
 import play.mvc.Controller;
 import play.mvc.Http;
@@ -36,6 +51,33 @@ import play.utils.Java;
  */
 public class Shibboleth extends Controller {
 
+	/** The checks of an action without any @Check() annotation */
+	private static final Checks NO_CHECK = new Checks(new String[0], false);
+
+	/** The effective @Check() for each action, see getChecks() */
+	private static final Map<String, Checks> checkIndex = new ConcurrentHashMap<String, Checks>();
+
+	/** The application classloader state the check index was built for */
+	private static volatile Object checkIndexState = null;
+
+	/** Session key of the user's attributes handle when using an attribute store */
+	static final String HANDLE = "shibboleth.handle";
+
+	/** Session key of the user's compactly encoded attributes, see AttributeCodec */
+	static final String ENCODED = "shibboleth.attributes";
+
+	/** Session key of the login's session id, see RevocationRegistry */
+	static final String SESSION = "shibboleth.session";
+
+	/** Flash key, or url parameter, counting a login's round trips, see destination() */
+	static final String HOPS = "shibHops";
+
+	/** Request argument holding the user's attributes once loaded */
+	private static final String ATTRIBUTES = "shib.attributes";
+
+	/** Request argument set when the user's login has been revoked */
+	private static final String REVOKED = "shib.revoked";
+
 	/**
 	 * This method works with the @With() annotation, so that those classes will
 	 * always have this method executed first. If a user has not logged in or
@@ -44,64 +86,93 @@ public class Shibboleth extends Controller {
 	 */
 	@Before(unless = { "login", "authenticate", "logout" })
 	static void checkAccess() throws Throwable {
-		String shibLoginActivated = Play.configuration.getProperty("shib.login",
-				"false");
-		if (!session.contains("shibboleth")) {
-			flash.put("url", "GET".equals(request.method) ? request.url : null);
-			if(Boolean.parseBoolean(shibLoginActivated)){
-				// Redirect to login
-				flash.put("url", "GET".equals(request.method) ? request.url : null);
-				Logger.debug("Shib: User requires authentication to access: "+request.url);
-				login();
-				
-			}else{	
-				//Call the "authenticate" action without initiating a shibboleth login
-				Logger.debug("Shib: Login redirection desactivated. Session authentication will be proceeded");			
-				authenticate();
+		long started = Metrics.start();
+		try {
+			if (!isAuthenticated()) {
+				if (request.args.containsKey(REVOKED)) {
+					Logger.debug("Shib: The user's login has been revoked, logging them out.");
+					forget();
+				}
+				ShibbolethConfig config = ShibbolethConfig.current();
+				HashMap<String, String> attributes = config.loginInline ? extractAttributes(config) : null;
+				if (attributes != null && !attributes.isEmpty()) {
+					// The headers are already here, log in without any redirects.
+					// Without an action to suspend, async work is only started.
+					Logger.debug("Shib: Authenticating inline to access: "+request.url);
+					throttle();
+					unawaited(signIn(attributes, config));
+				} else {
+					flash.put("url", "GET".equals(request.method) ? request.url : null);
+					if(config.login){
+						// Redirect to login
+						flash.put("url", "GET".equals(request.method) ? request.url : null);
+						Logger.debug("Shib: User requires authentication to access: "+request.url);
+						login();
+					
+					}else{	
+						// Authenticate without initiating a shibboleth login. An
+						// interceptor can not be suspended, so async work is
+						// only started, never waited on.
+						Logger.debug("Shib: Login redirection desactivated. Session authentication will be proceeded");			
+						String url = destination(config, false);
+						unawaited(signIn(extractAttributes(config), config));
+						Logger.debug("Shib: Redirecting user back to destination location: "+url);
+						redirect(url);
+					}
+				}
 			}
-		}
-
-		// Check authentication profiles
-		Check check = getActionAnnotation(Check.class);
-		if (check == null)
-			check = getControllerInheritedAnnotation(Check.class);
 
-		if (check != null) {
-			for (String profile : check.value()) {
-				boolean hasProfile = (Boolean) Security.invoke("check", profile);
-				if (!hasProfile) {
-					Security.invoke("onCheckFailed", profile);
+			// Check authentication profiles
+			Checks checks = getChecks();
+			if (checks.profiles.length > 0) {
+				String failed = Security.checkProfiles(checks.profiles, checks.any);
+				if (failed != null) {
+					if (AuditLog.isEnabled())
+						AuditLog.publish(AuditEvent.checkFailure(getPrincipal(), request.remoteAddress, failed));
+					Security.invoke("onCheckFailed", failed);
 				}
 			}
+		} finally {
+			Metrics.CHECK_ACCESS.record(started);
 		}
-
 	}
 
 	/**
 	 * Initiate a shibboleth login.
 	 */
 	public static void login() throws Throwable {
+		ShibbolethConfig config = ShibbolethConfig.current();
 
 		// Determine where the Shibboleth Login initiator is
-		String shibLogin = Play.configuration.getProperty("shib.login.url",
-				null);
+		String shibLogin = config.loginUrl;
 		if (shibLogin == null)
 			shibLogin = request.getBase() + "/Shibboleth.sso/Login";
-		if (isMock())
+		if (config.mock)
 			shibLogin = Router.reverse("shib.Shibboleth.authenticate").url;
 
 		// Append the target query string
-		shibLogin += "?target=" + Play.configuration.getProperty("application.baseUrl",request.getBase());
+		shibLogin += "?target=" + (config.baseUrl != null ? config.baseUrl : request.getBase());
 		shibLogin += Router.reverse("shib.Shibboleth.authenticate").url;
 
 		// Since we are redirecting we can't actually set the flash, so we'll
 		// embed it in the target url.
 		if (flash.get("url") != null)
-			if (isMock())
+			if (config.mock)
 				shibLogin += "&return=" + URLEncoder.encode(flash.get("url"));
 			else
 				shibLogin += URLEncoder.encode("?return=" + flash.get("url"));
 
+		// Start counting the login's round trips, or carry on counting if the
+		// last login was not kept, see destination().
+		String hops = flash.get(HOPS);
+		flash.put(HOPS, hops != null ? hops : "0-" + System.currentTimeMillis() / 1000);
+
+		// Pass a requested mock identity along to authenticate.
+		MockIdentityPool pool = config.mock ? MockShibboleth.pool() : null;
+		if (pool != null && params.get(pool.param) != null)
+			shibLogin += "&" + pool.param + "="
+					+ URLEncoder.encode(params.get(pool.param));
+
 		Logger.debug("Shib: Redirecting to Shibboleth login initiator: "
 				+ shibLogin);
 
@@ -112,28 +183,166 @@ public class Shibboleth extends Controller {
 	 * Authenticate the session after returning from Shibboleth.
 	 */
 	public static void authenticate() throws Throwable {
+		long started = Metrics.start();
+		try {
+			ShibbolethConfig config = ShibbolethConfig.current();
+			final String url = destination(config, true);
+
+			// 1. The headers received are captured for diagnostics by
+			// signIn(), see HeaderCapture.
+
+			// 2. Map each header to a session attribute
+			HashMap<String, String> extractedAttributes = extractAttributes(config);
+
+			// 3. Check for the required attributes, and 4. log the user in
+			Promise<?> enrichment = signIn(extractedAttributes, config);
+
+			// Wait for any async work the next page needs, without holding
+			// the request thread. Only the redirect is left to do once it
+			// finishes, so nothing above is repeated.
+			if (enrichment != null && !enrichment.isDone()) {
+				await(settle(enrichment, config.hookTimeout), new F.Action<Boolean>() {
+					public void invoke(Boolean enriched) {
+						Logger.debug("Shib: Redirecting user back to destination location: "+url);
+						redirect(url);
+					}
+				});
+			}
+			enriched(enrichment, 0);
+
+			// 5. Redirect to the original URL
+			Logger.debug("Shib: Redirecting user back to destination location: "+url);
+			redirect(url);
+		} finally {
+			Metrics.AUTHENTICATE.record(started);
+		}
+	}
+
+	/**
+	 * Throttle the login, once per round trip, and work out where to send the
+	 * user once logged in, stopping a login loop, i.e. a browser not keeping
+	 * the session cookie, before doing any work.
+	 *
+	 * The round trips are counted in the flash, which login() starts and each
+	 * login passes on to the next page: if that page finds the user logged
+	 * out, the next login carries on counting. Only if the flash set by
+	 * login() did not come back either, i.e. the browser is not keeping any
+	 * cookies, are they counted in the url the user is returned to instead.
+	 *
+	 * @param started
+	 *            True if the login was started by login(), rather than made
+	 *            as the user arrived.
+	 * @return The url to redirect the user to.
+	 */
+	private static String destination(ShibbolethConfig config, boolean started) {
+		throttle();
+		long now = System.currentTimeMillis();
+		String url = originalURL();
+		String hops = flash.get(HOPS);
+		if (hops == null && started) {
+			url = nextHop(url, config, now);
+		} else {
+			hops = countHop(hops, config, now);
+			url = hops == null ? null : withoutHops(url);
+			if (hops != null)
+				flash.put(HOPS, hops);
+		}
+		if (url == null) {
+			Metrics.REFUSED_LOGINS.increment("loop");
+			Logger.warn("Shib: Stopped a login loop from " + request.remoteAddress + ".");
+			refuse(400, "Login failed because your browser did not keep the session, please check that cookies are enabled.");
+		}
+		return url;
+	}
+
+	/**
+	 * Wait for the onAuthenticatedAsync() hook's work, for at most timeout
+	 * milliseconds. Work that fails, was refused or runs late only costs the
+	 * login its enrichment: the problem is logged and the login continues.
+	 * 
+	 * @param enrichment
+	 *            The hook's promise, may be null.
+	 * @return True if there was no work, or it finished in time.
+	 */
+	private static boolean enriched(Promise<?> enrichment, long timeout) {
+		if (enrichment == null)
+			return true;
+		try {
+			enrichment.get(timeout, TimeUnit.MILLISECONDS);
+			if (enrichment.isDone())
+				return true;
+		} catch (TimeoutException e) {
+			// Logged below
+		} catch (ExecutionException e) {
+			Logger.warn(e.getCause(), "Shib: The onAuthenticatedAsync() work failed, continuing without it.");
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Logger.warn("Shib: Gave up waiting for the onAuthenticatedAsync() work after " + timeout + "ms, continuing without it.");
+		return false;
+	}
+
+	/**
+	 * Let the onAuthenticatedAsync() hook's work run on without waiting for
+	 * it, for logins made by checkAccess(), inline or with shib.login false,
+	 * which can not suspend the request.
+	 * The user is sent on straight away and any failure is only logged.
+	 * 
+	 * @param enrichment
+	 *            The hook's promise, may be null.
+	 */
+	private static <V> void unawaited(Promise<V> enrichment) {
+		if (enrichment == null)
+			return;
+		enrichment.onRedeem(new F.Action<Promise<V>>() {
+			public void invoke(Promise<V> done) {
+				enriched(done, 0);
+			}
+		});
+	}
 
-		// 1. Log all headers received, if tracing (it fills up the logs fast!)
-		if (Logger.isTraceEnabled()) {
-			String log = "Shib: Recieved the following headers: \n";
-			for (String name : request.headers.keySet()) {
-				for (String value : request.headers.get(name).values) {
-					log += "    '" + name + "' = '" + value + "'\n";
+	/**
+	 * A promise redeemed, never failed, once the onAuthenticatedAsync() hook's
+	 * work finishes, fails, or runs for longer than timeout milliseconds.
+	 * 
+	 * @return A promise of whether the work finished in time, see enriched().
+	 */
+	private static <V> Promise<Boolean> settle(Promise<V> enrichment, final long timeout) {
+		final Promise<Boolean> settled = new Promise<Boolean>();
+		enrichment.onRedeem(new F.Action<Promise<V>>() {
+			public void invoke(Promise<V> done) {
+				settled.invoke(enriched(done, 0));
+			}
+		});
+		new F.Timeout(timeout).onRedeem(new F.Action<Promise<F.Timeout>>() {
+			public void invoke(Promise<F.Timeout> expired) {
+				if (!settled.isDone()) {
+					Logger.warn("Shib: Gave up waiting for the onAuthenticatedAsync() work after " + timeout + "ms, continuing without it.");
+					settled.invoke(false);
 				}
 			}
-			Logger.trace(log);
-		}
+		});
+		return settled;
+	}
 
-		// 2. Map each header to a session attribute
-		Map<String, String> attributeMap = getAttributeMap();
-		Map<String, String> extractedAttributes = new HashMap<String, String>();
-		for (String attribute : attributeMap.keySet()) {
+	/**
+	 * Map each configured Shibboleth header (or mock header) on the current
+	 * request to its attribute. Blank headers are skipped.
+	 * 
+	 * @return Map of attribute names to their values.
+	 */
+	private static HashMap<String, String> extractAttributes(ShibbolethConfig config) {
+		HashMap<String, String> extractedAttributes = new HashMap<String, String>();
+		Map<String, Header> mockHeaders = config.mock ? MockShibboleth.current() : null;
+		for (int i = 0; i < config.attributeCount(); i++) {
 
-			String headerName = attributeMap.get(attribute);
+			String attribute = config.attributeName(i);
+			String headerName = config.headerName(i);
 			Header headers = null;
-			if (isMock())
+			if (config.mock)
 				// Get the fake headers
-				headers = MockShibboleth.get(headerName);
+				headers = mockHeaders.get(headerName);
 			else
 				// Use the real headers
 				headers = request.headers.get(headerName);
@@ -163,30 +372,101 @@ public class Shibboleth extends Controller {
 				// Shibboleth will send blank attributes for values which do not exist.
 				continue;
 			}
+
+			AttributeTransform transform = config.transform(i);
+			if (transform != null) {
+				value = transform(value, transform);
+				if (value.length() == 0) {
+					Logger.debug("Shib: Every value of attribute '" + attribute
+							+ "' was dropped by its transform.");
+					continue;
+				}
+			}
 			
 			// Store on the session.
 			extractedAttributes.put(attribute, value);
 			Logger.debug("Shib: Recieved attribute, '" + attribute + "' = '"+ value + "'");
 		}
+		return extractedAttributes;
+	}
+
+	/**
+	 * Apply a transform to each of a multivalue attribute's values.
+	 * 
+	 * @return The transformed values, empty if every value was dropped.
+	 */
+	private static String transform(String value, final AttributeTransform transform) {
+		final List<String> values = new ArrayList<String>();
+		split(value, new ValueHandler() {
+			public boolean value(String value) {
+				String transformed = transform.apply(value);
+				if (transformed != null && transformed.length() > 0)
+					values.add(transformed);
+				return true;
+			}
+		});
+		return AttributeCodec.join(values);
+	}
+
+	/**
+	 * Log the user in with the attributes extracted from the request, after
+	 * checking the required attributes are present.
+	 * 
+	 * @return The promise returned by the onAuthenticatedAsync() hook, or null.
+	 */
+	private static Promise<?> signIn(HashMap<String, String> extractedAttributes,
+			ShibbolethConfig config) throws Throwable {
+
+		// Count the mapped headers which did not arrive, or were blank.
+		if (Metrics.isEnabled()) {
+			for (int i = 0; i < config.attributeCount(); i++) {
+				if (!extractedAttributes.containsKey(config.attributeName(i)))
+					Metrics.MISSING_HEADERS.increment(config.attributeName(i));
+			}
+		}
+
+		// Capture the headers of a sample of logins, and of every login
+		// missing a required attribute.
+		HeaderCapture capture = HeaderCapture.current();
+		if (capture != null) {
+			String missing = null;
+			for (int i = 0; i < config.requiredCount() && missing == null; i++) {
+				if (!extractedAttributes.containsKey(config.requiredAttribute(i)))
+					missing = config.requiredAttribute(i);
+			}
+			if (missing != null || capture.sample())
+				capture.capture(missing == null ? "sampled" : "missing " + missing,
+						request.remoteAddress, config.mock ? MockShibboleth.current() : request.headers);
+		}
 
 		// 3. Check for the required attributes
-		for (String required : getRequiredAttributes()) {
+		for (int i = 0; i < config.requiredCount(); i++) {
+			String required = config.requiredAttribute(i);
 			if (!extractedAttributes.containsKey(required)) {
 				Logger.warn("Shib: Missing required attribute, '"+required+"'");
+				Metrics.REQUIRED_FAILURES.increment(required);
+				if (AuditLog.isEnabled())
+					AuditLog.publish(AuditEvent.attributeFailure(
+							config.principal == null ? null : extractedAttributes.get(config.principal),
+							request.remoteAddress, required));
 				Security.invoke("onAttributeFailure", extractedAttributes);
 			}
 		}
 
 		// 4. Log the user in
-		session.put("shibboleth", String.valueOf(new Date().getTime()));
-		for (String attribute : extractedAttributes.keySet()) {
-			session.put(attribute, extractedAttributes.get(attribute));
-		}
+		long login = System.currentTimeMillis();
+		Security.clearCheckCache();
+		session.put("shibboleth", String.valueOf(login));
+		session.put(SESSION, sessionId(config));
+		storeAttributes(extractedAttributes);
 		Logger.debug("Shib: User has succesfully authenticated with Shibboleth.");
 		Security.invoke("onAuthenticated");
-
-		// 5. Redirect to the original URL
-		redirectToOriginalURL();
+		Promise<?> enrichment = (Promise<?>) Security.invoke("onAuthenticatedAsync");
+		if (WriteBehind.isEnabled() && getPrincipal() != null)
+			WriteBehind.submit(new UserRecord(getPrincipal(), extractedAttributes, login));
+		if (AuditLog.isEnabled())
+			AuditLog.publish(AuditEvent.login(getPrincipal(), request.remoteAddress));
+		return enrichment;
 	}
 
 	/**
@@ -194,157 +474,488 @@ public class Shibboleth extends Controller {
 	 * Shibboleth Logout.
 	 */
 	public static void logout() throws Throwable {
-		
-		// 1. Clear out the session
-		Security.invoke("onDisconnect");
-		session.clear();
-		Security.invoke("onDisconnected");
-		Logger.debug("Shib: User has succesfully logged out using Shibboleth.");
-
-		// 2. Determine where the user should go next.
-		String shibReturn = Play.configuration.getProperty("shib.logout.return", null);
-		if (shibReturn == null)
-			shibReturn = Play.configuration.getProperty("application.baseUrl",request.getBase()) + "/";
+		long started = Metrics.start();
+		try {
+			// 1. Clear out the session
+			Security.invoke("onDisconnect");
+			if (AuditLog.isEnabled())
+				AuditLog.publish(AuditEvent.logout(getPrincipal(), request.remoteAddress));
+			// A copy of the session cookie must not outlive the logout.
+			RevocationRegistry.revokeSession(session.get(SESSION));
+			forget();
+			Security.invoke("onDisconnected");
+			Logger.debug("Shib: User has succesfully logged out using Shibboleth.");
+
+			// 2. Determine where the user should go next.
+			ShibbolethConfig config = ShibbolethConfig.current();
+			String shibReturn = config.logoutReturn;
+			if (shibReturn == null)
+				shibReturn = (config.baseUrl != null ? config.baseUrl : request.getBase()) + "/";
 		
 		
-		// 3. Tell shibboleth the user has logged out.
-		String useLogout = Play.configuration.getProperty("shib.logout",
-				"false");
-		if (useLogout.equalsIgnoreCase("true")) {
-			// Determine where the Shibboleth logout initiator is
-			String shibLogout = Play.configuration.getProperty(
-					"shib.logout.url", null);
-			if (shibLogout == null)
-				shibLogout = request.getBase() + "/Shibboleth.sso/Logout";
-
-			// Append the target query string
-			shibLogout += "?return=" + shibReturn;
-
-			Logger.debug("Shib: Redirecting to Shibboleth logout initiator: " + shibLogout);
-			redirect(shibLogout);
+			// 3. Tell shibboleth the user has logged out.
+			if (config.logout) {
+				// Determine where the Shibboleth logout initiator is
+				String shibLogout = config.logoutUrl;
+				if (shibLogout == null)
+					shibLogout = request.getBase() + "/Shibboleth.sso/Logout";
+
+				// Append the target query string
+				shibLogout += "?return=" + shibReturn;
+
+				Logger.debug("Shib: Redirecting to Shibboleth logout initiator: " + shibLogout);
+				redirect(shibLogout);
+			}
+
+			redirect(shibReturn);
+		} finally {
+			Metrics.LOGOUT.record(started);
 		}
+	}
+
+	/**
+	 * Clear the user's session, along with any attributes stored for it.
+	 */
+	private static void forget() {
+		AttributeStore store = ShibbolethPlugin.attributeStore();
+		if (store != null && session.contains(HANDLE))
+			store.remove(session.get(HANDLE));
+		request.args.remove(ATTRIBUTES);
+		request.args.remove(REVOKED);
+		session.clear();
+		Security.clearCheckCache();
+	}
 
-		redirect(shibReturn);
+	/**
+	 * @return The Shibboleth session id from the request (see
+	 *         shib.session.header), or a new random id if there is none.
+	 */
+	private static String sessionId(ShibbolethConfig config) {
+		Header header = config.mock ? MockShibboleth.current().get(
+				config.sessionHeader) : request.headers.get(
+				config.sessionHeader.toLowerCase());
+		String id = header == null ? null : header.value();
+		return id == null || id.length() == 0 ? Codec.UUID() : id;
 	}
 
 	/**
 	 * Split a multivalue shibboleth attribute into individual components.
 	 * Shibboleth attributes may contain multiple values separated by a
 	 * semicolon and semicolons are escaped with a backslash. This method will
-	 * split all the attributes into a list and unescape semicolons.
+	 * split all the attributes into a list and unescape semicolons. Before a
+	 * semicolon, a pair of backslashes stands for one backslash, so that a
+	 * value ending in a backslash can be followed by another value.
 	 * 
 	 * @param attribute
 	 *            A multivalue shibboleth attribute
 	 * @return A list of attribute values.
 	 */
 	public static List<String> split(String attribute) {
-		List<String> valueList = new ArrayList<String>();
-		int idx = 0;
-		do {
-			idx = attribute.indexOf(';', idx);
-
-			if (idx == 0) {
-				// if the string starts with a semicolon just remove it. This
-				// will
-				// prevent an endless loop in an error condition.
-				attribute = attribute.substring(1, attribute.length());
-				continue;
-			} 
-			if (idx > 0 && attribute.charAt(idx - 1) == '\\') {
-				idx++;
+		return split(attribute, new ArrayList<String>());
+	}
+
+	/**
+	 * Split a multivalue shibboleth attribute into individual components,
+	 * adding each value to the supplied collection. See split(String).
+	 * 
+	 * @param attribute
+	 *            A multivalue shibboleth attribute
+	 * @param values
+	 *            The collection to add the values to.
+	 * @return The collection of values.
+	 */
+	public static <C extends Collection<String>> C split(String attribute,
+			final C values) {
+		split(attribute, new ValueHandler() {
+			public boolean value(String value) {
+				values.add(value);
+				return true;
+			}
+		});
+		return values;
+	}
+
+	/**
+	 * Split a multivalue shibboleth attribute into individual components,
+	 * passing each value to the handler in order as it is found. The
+	 * attribute is scanned once, and no intermediate list is built. See
+	 * split(String).
+	 * 
+	 * @param attribute
+	 *            A multivalue shibboleth attribute
+	 * @param handler
+	 *            Receives each value, and may stop the scan by returning
+	 *            false.
+	 * @return false if the handler stopped the scan, otherwise true.
+	 */
+	public static boolean split(String attribute, ValueHandler handler) {
+		long started = Metrics.start();
+		try {
+			return scan(attribute, handler);
+		} finally {
+			Metrics.SPLIT.record(started);
+		}
+	}
+
+	/**
+	 * The implementation of split(String, ValueHandler).
+	 */
+	private static boolean scan(String attribute, ValueHandler handler) {
+		int length = attribute.length();
+		int start = 0;
+		// Holds the current value once it is known to contain an escaped
+		// semicolon or backslash, otherwise the value is just a substring.
+		StringBuilder unescaped = null;
+		boolean escaped = false;
+
+		for (int i = 0; i < length; i++) {
+			if (attribute.charAt(i) != ';')
 				continue;
-			} 
-			if (idx > 0 ) {
-				// First extract the value and store it on the list.
-				String value = attribute.substring(0, idx);
-				value = value.replaceAll("\\\\;", ";");
-				valueList.add(value);
-
-				// Next, remove the value from the string and continue to scan.
-				attribute = attribute.substring(idx + 1, attribute.length());
-				idx = 0;
-			} 
-		} while (idx >= 0);
-
-		// The last attribute will still be left on the values string, put it
-		// into the list.
-		if (attribute.length() > 0) {
-			attribute = attribute.replaceAll("\\\\;", ";");
-			valueList.add(attribute);
+
+			// Backslashes just before a semicolon stand for one backslash
+			// each pair, and an odd one out escapes the semicolon.
+			int slashes = 0;
+			while (i - slashes > start
+					&& attribute.charAt(i - slashes - 1) == '\\')
+				slashes++;
+			if (slashes > 0) {
+				if (unescaped == null)
+					unescaped = new StringBuilder(length - start);
+				unescaped.append(attribute, start, i - slashes);
+				for (int pair = 0; pair < slashes / 2; pair++)
+					unescaped.append('\\');
+				escaped = true;
+				start = i;
+			}
+
+			if (slashes % 2 == 1) {
+				// An escaped semicolon, drop the backslash and keep scanning.
+				unescaped.append(';');
+			} else {
+				// Empty values, i.e. leading or repeated semicolons, are
+				// skipped.
+				if (escaped) {
+					unescaped.append(attribute, start, i);
+					if (!handler.value(unescaped.toString()))
+						return false;
+					unescaped.setLength(0);
+					escaped = false;
+				} else if (i > start) {
+					if (!handler.value(attribute.substring(start, i)))
+						return false;
+				}
+			}
+			start = i + 1;
 		}
-		
-		return valueList;
+
+		// The last value runs to the end of the attribute.
+		if (escaped) {
+			unescaped.append(attribute, start, length);
+			return handler.value(unescaped.toString());
+		} else if (length > start) {
+			return handler.value(attribute.substring(start, length));
+		}
+		return true;
 	}
 
 	/**
-	 * @return Is Shibboleth being Mocked for testing?
+	 * Receives the individual values of a multivalue shibboleth attribute.
+	 * See split(String, ValueHandler).
 	 */
-	private static boolean isMock() {
-		if (Play.mode == Mode.DEV
-				&& "mock".equalsIgnoreCase(Play.configuration
-						.getProperty("shib")))
-			return true;
-		else
+	public interface ValueHandler {
+
+		/**
+		 * @param value
+		 *            The next unescaped attribute value, never empty.
+		 * @return true to continue with the next value, false to stop.
+		 */
+		boolean value(String value);
+	}
+
+	/**
+	 * Look up the profiles required by the current action's @Check()
+	 * annotation, or if it has none the controller's. The annotations are
+	 * only examined the first time an action is invoked, after that the
+	 * result (including the absence of any annotation) is cached until the
+	 * application classes are reloaded.
+	 * 
+	 * @return The profiles to check and their mode, never null.
+	 */
+	private static Checks getChecks() {
+		Object state = Play.classloader.currentState;
+		if (checkIndexState != state) {
+			checkIndex.clear();
+			checkIndexState = state;
+		}
+
+		Checks checks = checkIndex.get(request.action);
+		if (checks == null) {
+			Check check = getActionAnnotation(Check.class);
+			if (check == null)
+				check = getControllerInheritedAnnotation(Check.class);
+
+			checks = (check == null) ? NO_CHECK : new Checks(check.value(),
+					check.mode() == Check.Mode.ANY);
+			checkIndex.put(request.action, checks);
+		}
+		return checks;
+	}
+
+	/**
+	 * An action's @Check() profiles, and whether any one of them will do.
+	 */
+	private static final class Checks {
+		final String[] profiles;
+		final boolean any;
+
+		Checks(String[] profiles, boolean any) {
+			this.profiles = profiles;
+			this.any = any;
+		}
+	}
+
+	/**
+	 * @return The value of the attribute identifying the current user, see
+	 *         shib.principal, or null if it is not known.
+	 */
+	public static String getPrincipal() {
+		String principal = ShibbolethConfig.current().principal;
+		return principal == null ? null : getAttribute(principal);
+	}
+
+	/**
+	 * @return True if the current user has authenticated, and their
+	 *         attributes are still available.
+	 */
+	public static boolean isAuthenticated() {
+		return session.contains("shibboleth") && loadAttributes() != null;
+	}
+
+	/**
+	 * Look up one of the current user's Shibboleth attributes. The attributes
+	 * are kept either in the session or, if one is configured, in the
+	 * attribute store.
+	 * 
+	 * @param name
+	 *            The attribute name, as in shib.attribute.&lt;name&gt;
+	 * @return The attribute's value, or null if the user does not have it.
+	 */
+	public static String getAttribute(String name) {
+		return attributes().get(name);
+	}
+
+	/**
+	 * Access the current user's Shibboleth attributes. The attributes are
+	 * loaded once per request, and multivalue attributes are split once, so
+	 * this may be called repeatedly from checks and templates.
+	 * 
+	 * @return The user's attributes, empty if the user has not authenticated.
+	 */
+	public static Attributes attributes() {
+		Attributes attributes = loadAttributes();
+		return attributes == null ? Attributes.EMPTY : attributes;
+	}
+
+	/**
+	 * Keep the user's attributes, either in the session (one entry per
+	 * attribute, or compactly encoded in a single entry) or in the attribute
+	 * store with only a handle to them in the session.
+	 */
+	private static void storeAttributes(Map<String, String> attributes) {
+		AttributeStore store = ShibbolethPlugin.attributeStore();
+		ShibbolethConfig config = ShibbolethConfig.current();
+		if (store == null && config.compactSession) {
+			session.put(ENCODED, AttributeCodec.encode(attributes, config));
+		} else if (store == null) {
+			for (Map.Entry<String, String> entry : attributes.entrySet()) {
+				session.put(entry.getKey(), entry.getValue());
+			}
+		} else {
+			if (session.contains(HANDLE))
+				store.remove(session.get(HANDLE));
+			session.put(HANDLE, store.put(attributes));
+		}
+		request.args.remove(ATTRIBUTES);
+	}
+
+	/**
+	 * Load the user's attributes, at most once per request. This never
+	 * changes the session, a revoked login is only noted for checkAccess().
+	 * 
+	 * @return The attributes, or null if the user has not logged in, their
+	 *         login has been revoked, or the attributes are no longer in the
+	 *         attribute store or can not be decoded.
+	 */
+	private static Attributes loadAttributes() {
+		if (request.args.containsKey(ATTRIBUTES))
+			return (Attributes) request.args.get(ATTRIBUTES);
+
+		Map<String, String> attributes;
+		AttributeStore store = ShibbolethPlugin.attributeStore();
+		if (!session.contains("shibboleth")) {
+			attributes = null;
+		} else if (store != null) {
+			String handle = session.get(HANDLE);
+			attributes = handle == null ? null : store.get(handle);
+		} else if (ShibbolethConfig.current().compactSession) {
+			attributes = AttributeCodec.decode(session.get(ENCODED),
+					ShibbolethConfig.current());
+		} else {
+			ShibbolethConfig config = ShibbolethConfig.current();
+			attributes = new HashMap<String, String>();
+			for (int i = 0; i < config.attributeCount(); i++) {
+				String value = session.get(config.attributeName(i));
+				if (value != null)
+					attributes.put(config.attributeName(i), value);
+			}
+		}
+		if (attributes != null && isRevoked(attributes)) {
+			// Only checkAccess() logs the user out, so that reading the
+			// attributes never changes the session.
+			request.args.put(REVOKED, Boolean.TRUE);
+			attributes = null;
+		}
+		Attributes view = attributes == null ? null : new Attributes(attributes);
+		request.args.put(ATTRIBUTES, view);
+		return view;
+	}
+
+	/**
+	 * @return True if the current login has been revoked, by the user's
+	 *         principal or its session id.
+	 */
+	private static boolean isRevoked(Map<String, String> attributes) {
+		String login = session.get("shibboleth");
+		if (login == null)
 			return false;
+		String principal = ShibbolethConfig.current().principal;
+		return RevocationRegistry.isRevoked(principal == null ? null
+				: attributes.get(principal), session.get(SESSION), Long
+				.parseLong(login));
 	}
 
 	/**
-	 * Redirect to the original user's url
+	 * @return The url the user was originally going to.
 	 */
-	private static void redirectToOriginalURL() throws Throwable {
+	private static String originalURL() {
 		String url = flash.get("url");
 		if (url == null)
 			url = request.params.get("return");
 		if (url == null)
-			url = Play.configuration.getProperty("shib.login.return","/");
-
-
-		Logger.debug("Shib: Redirecting user back to destination location: "+url);
-		redirect(url);
+			url = ShibbolethConfig.current().loginReturn;
+		return url;
 	}
 
 	/**
-	 * @return The mapped session attributes from the Play! configuration.
-	 *         HashMap of Attribute names to HTTP Header names
+	 * Count another login round trip in the url's shibHops parameter, see
+	 * countHop().
+	 *
+	 * @return The url with the count updated, or null if it has made more
+	 *         than shib.loop.max round trips and is stuck in a loop.
 	 */
-	private static Map<String, String> getAttributeMap() {
-		Map<String, String> attributeMap = new HashMap<String, String>();
+	static String nextHop(String url, ShibbolethConfig config, long now) {
+		// The parameter goes before any fragment.
+		int hash = url.indexOf('#');
+		String fragment = hash < 0 ? "" : url.substring(hash);
+		String base = hash < 0 ? url : url.substring(0, hash);
+
+		String hops = null;
+		int start = findHops(base);
+		if (start > 0) {
+			int end = base.indexOf('&', start);
+			hops = base.substring(start + HOPS.length() + 1, end < 0 ? base.length() : end);
+			base = withoutHops(base);
+		}
 
-		Set<Object> keys = Play.configuration.keySet();
-		for (Object keyObj : keys) {
-			if (keyObj instanceof String) {
-				String key = (String) keyObj;
-				if (key.startsWith("shib.attribute.")) {
-					String attribute = key
-							.substring("shib.attribute.".length());
-					String header = Play.configuration.getProperty(key);
+		hops = countHop(hops, config, now);
+		if (hops == null)
+			return null;
+		return base + (base.indexOf('?') < 0 ? '?' : '&') + HOPS + "=" + hops + fragment;
+	}
 
-					attributeMap.put(attribute, header);
+	/**
+	 * Count another login round trip. The count holds the number of round
+	 * trips made and when the first was made, in seconds, i.e. "2-1400000000".
+	 * Round trips older than shib.loop.window are forgotten.
+	 *
+	 * @param hops
+	 *            The round trips counted so far, or null if there are none.
+	 * @return The count updated, or null if more than shib.loop.max round
+	 *         trips have been made and the login is stuck in a loop.
+	 */
+	static String countHop(String hops, ShibbolethConfig config, long now) {
+		int count = 0;
+		long first = now / 1000;
+		if (hops != null) {
+			int dash = hops.indexOf('-');
+			try {
+				long made = Long.parseLong(hops.substring(dash + 1));
+				if (dash > 0 && made * 1000 + config.loopWindow >= now) {
+					count = Integer.parseInt(hops.substring(0, dash));
+					first = made;
 				}
+			} catch (NumberFormatException e) {
+				// Start counting again.
 			}
 		}
 
-		return attributeMap;
+		if (++count > config.loopMax)
+			return null;
+		return count + "-" + first;
 	}
 
 	/**
-	 * @return The list of attributes required for successful authentication.
+	 * Remove the shibHops parameter from a url, once the login it was
+	 * counting has succeeded.
+	 * 
+	 * @return The url without the parameter, or the same url if it has none.
 	 */
-	private static List<String> getRequiredAttributes() {
+	static String withoutHops(String url) {
+		int hash = url.indexOf('#');
+		int start = findHops(hash < 0 ? url : url.substring(0, hash));
+		if (start < 0)
+			return url;
+		int end = url.indexOf('&', start);
+		if (hash >= 0 && (end < 0 || end > hash))
+			end = -1;
+
+		// Drop the parameter, along with one of its separators.
+		if (end >= 0)
+			return url.substring(0, start) + url.substring(end + 1);
+		return url.substring(0, start - 1) + (hash < 0 ? "" : url.substring(hash));
+	}
 
-		
-		String shibRequired = Play.configuration.getProperty("shib.require", null);
-		
-		if (shibRequired == null)
-			return Collections.EMPTY_LIST;
-		
-		String[] requiredAttributes = shibRequired.split(",");
-		
-		for (int i = 0; i < requiredAttributes.length; i++) {
-			requiredAttributes[i] = requiredAttributes[i].trim();
+	/**
+	 * @return The position of the shibHops parameter in a url without a
+	 *         fragment, or -1 if it has none.
+	 */
+	private static int findHops(String url) {
+		int start = url.indexOf(HOPS + "=");
+		while (start > 0 && url.charAt(start - 1) != '?' && url.charAt(start - 1) != '&')
+			start = url.indexOf(HOPS + "=", start + 1);
+		return start > 0 ? start : -1;
+	}
+
+	/**
+	 * Refuse the request with a plain 429 response if the client has started
+	 * too many logins lately, see shib.throttle.
+	 */
+	private static void throttle() {
+		if (!LoginThrottle.allow(request.remoteAddress)) {
+			Metrics.REFUSED_LOGINS.increment("throttled");
+			Logger.debug("Shib: Refused a login from " + request.remoteAddress + ", too many logins.");
+			response.setHeader("Retry-After", "60");
+			refuse(429, "Too many login attempts, please try again later.");
 		}
-		
-		return Arrays.asList(requiredAttributes);
+	}
+
+	/**
+	 * Stop the request with a short plain text response, rather than
+	 * rendering an error template.
+	 */
+	private static void refuse(int status, String message) {
+		response.status = status;
+		renderText(message);
 	}
 
 }
@@ -0,0 +1,92 @@
+package controllers.shib;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+import groovy.lang.Closure;
+import play.exceptions.UnexpectedException;
+import play.templates.FastTags;
+import play.templates.GroovyTemplate.ExecutableTemplate;
+import play.templates.JavaExtensions;
+import play.templates.TagContext;
+
+/**
+ * Template tags in the shibboleth namespace. These are compiled Java tags, so
+ * using them in a layout costs a method call rather than rendering a Groovy
+ * tag template.
+ */
+@FastTags.Namespace("shibboleth")
+public class ShibbolethTags extends FastTags {
+
+	/**
+	 * Render the body only if the user passes the profile's check, may be
+	 * followed by #{else}.
+	 *
+	 * <pre>
+	 * #{shibboleth.check 'administrator'} ... #{/shibboleth.check}
+	 * </pre>
+	 */
+	public static void _check(Map<?, ?> args, Closure body, PrintWriter out,
+			ExecutableTemplate template, int fromLine) {
+		String profile = String.valueOf(args.get("arg"));
+		boolean passed;
+		try {
+			passed = Security.checkProfile(profile);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new UnexpectedException(e);
+		}
+
+		if (passed)
+			body.call();
+		TagContext.parent().data.put("_executeNextElse", !passed);
+	}
+
+	/**
+	 * Print the attribute's first value, HTML escaped, or the default if the
+	 * user does not have it.
+	 *
+	 * <pre>
+	 * #{shibboleth.attribute 'email', default:'unknown' /}
+	 * </pre>
+	 */
+	public static void _attribute(Map<?, ?> args, Closure body,
+			PrintWriter out, ExecutableTemplate template, int fromLine) {
+		String value = Shibboleth.attributes().first(String.valueOf(args.get("arg")));
+		if (value == null && args.get("default") != null)
+			value = args.get("default").toString();
+		if (value != null)
+			out.print(JavaExtensions.escapeHtml(value));
+	}
+
+	/**
+	 * Render the body once for each of the attribute's values, using the
+	 * values already split for the request. The value is available as
+	 * <code>as</code> ("value" by default), along with the usual
+	 * <code>_index</code>, <code>_isFirst</code> and <code>_isLast</code>
+	 * variables.
+	 *
+	 * <pre>
+	 * #{shibboleth.values 'isMemberOf', as:'group'} ${group} #{/shibboleth.values}
+	 * </pre>
+	 */
+	public static void _values(Map<?, ?> args, Closure body, PrintWriter out,
+			ExecutableTemplate template, int fromLine) {
+		List<String> values = Shibboleth.attributes().values(
+				String.valueOf(args.get("arg")));
+		String as = args.get("as") != null ? args.get("as").toString() : "value";
+		int size = values.size();
+		for (int i = 0; i < size; i++) {
+			body.setProperty(as, values.get(i));
+			body.setProperty(as + "_index", i + 1);
+			body.setProperty(as + "_isFirst", i == 0);
+			body.setProperty(as + "_isLast", i == size - 1);
+			body.call();
+		}
+		TagContext.parent().data.put("_executeNextElse", size == 0);
+	}
+}
@@ -0,0 +1,66 @@
+package controllers.shib;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A request's group checks: the user's attributes are loaded afresh for each
+ * request, then a multivalued attribute is tested for a few values, half of
+ * which the user has.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AttributesBenchmark {
+
+	@Param({ "10", "100", "500" })
+	int values;
+
+	@Param({ "1", "5" })
+	int checks;
+
+	Map<String, String> raw;
+
+	String[] groups;
+
+	@Setup
+	public void setup() {
+		raw = new HashMap<String, String>();
+		raw.put("email", "someone@example.edu");
+		raw.put("isMemberOf", PlayStandIn.multivalued(values));
+
+		List<String> held = Shibboleth.split(raw.get("isMemberOf"));
+		groups = new String[checks];
+		for (int i = 0; i < checks; i++)
+			groups[i] = i % 2 == 0 ? held.get(held.size() * i / checks)
+					: "cn=missing" + i + ",ou=groups,dc=example,dc=edu";
+	}
+
+	@Benchmark
+	public int contains() {
+		Attributes attributes = new Attributes(raw);
+		int found = 0;
+		for (String group : groups) {
+			if (attributes.contains("isMemberOf", group))
+				found++;
+		}
+		return found;
+	}
+}
@@ -0,0 +1,62 @@
+package controllers.shib;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import play.mvc.Http;
+import play.mvc.Scope.Session;
+import play.mvc.results.Redirect;
+
+/**
+ * The authenticate() action: mapping the Shibboleth headers to session
+ * attributes, checking the required attributes, logging the user in and
+ * redirecting back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AuthenticateBenchmark {
+
+	@Param({ "3", "20" })
+	int attributes;
+
+	@Param({ "1", "100" })
+	int entitlements;
+
+	Http.Request request;
+
+	@Setup
+	public void setup() {
+		PlayStandIn.start(PlayStandIn.configuration(attributes));
+		Map<String, Http.Header> headers = PlayStandIn.headers(attributes,
+				entitlements);
+		request = PlayStandIn.request("Application.index", headers);
+	}
+
+	@Benchmark
+	public Object authenticate() throws Throwable {
+		Session.current().clear();
+		request.args.clear();
+		try {
+			Shibboleth.authenticate();
+		} catch (Redirect redirect) {
+			return redirect;
+		}
+		throw new IllegalStateException("authenticate() did not redirect");
+	}
+}
@@ -0,0 +1,93 @@
+package controllers.shib;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Scope.Session;
+
+/**
+ * The checkAccess() interceptor for an authenticated user and an action with
+ * an @Check() annotation: looking up the action's profiles, loading the
+ * user's attributes from the session and evaluating the profiles. Followed by
+ * a page which repeats the same profiles in shibboleth.check tags.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CheckAccessBenchmark {
+
+	@Param({ "1", "5" })
+	int profiles;
+
+	@Param({ "0", "20" })
+	int renders;
+
+	String[] check;
+
+	Http.Request request;
+
+	/**
+	 * Stand-in actions for checkAccess() to look up the @Check() profiles of.
+	 */
+	public static class Actions extends Controller {
+
+		@Check("profile0")
+		public static void one() {
+		}
+
+		@Check({ "profile0", "profile1", "profile2", "profile3", "profile4" })
+		public static void five() {
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		PlayStandIn.start(PlayStandIn.configuration(3));
+		String action = profiles == 1 ? "one" : "five";
+		request = PlayStandIn.request("CheckAccessBenchmark.Actions." + action,
+				Collections.<String, Http.Header> emptyMap());
+		request.controllerClass = Actions.class;
+		request.invokedMethod = Actions.class.getMethod(action);
+
+		Session session = Session.current();
+		session.put("shibboleth", String.valueOf(System.currentTimeMillis()));
+		session.put("attribute0", "value-0@example.edu");
+		session.put("attribute1", "value-1@example.edu");
+		session.put("entitlement", PlayStandIn.multivalued(20));
+
+		check = new String[profiles];
+		for (int i = 0; i < profiles; i++)
+			check[i] = "profile" + i;
+	}
+
+	@Benchmark
+	public boolean checkAccess() throws Throwable {
+		// A new request, with nothing loaded or decided yet.
+		request.args.clear();
+		Shibboleth.checkAccess();
+
+		boolean allowed = true;
+		for (int render = 0; render < renders; render++) {
+			for (String profile : check)
+				allowed &= Security.checkProfile(profile);
+		}
+		return allowed;
+	}
+}
@@ -0,0 +1,152 @@
+package controllers.shib;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import play.Play;
+import play.classloading.ApplicationClasses;
+import play.classloading.ApplicationClassloader;
+import play.modules.shibboleth.ShibbolethConfig;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Scope;
+import play.vfs.VirtualFile;
+
+/**
+ * In-process stand-ins for the parts of Play! that the module touches while
+ * handling a request, so the module can be benchmarked without starting an
+ * application.
+ *
+ * The benchmarks run the module's classes without Play's bytecode
+ * enhancement, so the controllers' request, session, flash and params are
+ * plain static fields which are pointed at the current stand-in request. The
+ * benchmarks are therefore single threaded.
+ */
+final class PlayStandIn {
+
+	/**
+	 * Set up a minimal Play! environment with the given configuration.
+	 */
+	static void start(Properties configuration) {
+		Play.configuration = configuration;
+		Play.mode = Play.Mode.DEV;
+		Play.applicationPath = new File(".");
+		Play.javaPath = new ArrayList<VirtualFile>();
+		Play.classes = new ApplicationClasses();
+		Play.classloader = new StandInClassloader();
+		ShibbolethConfig.reload();
+	}
+
+	/**
+	 * @return A configuration mapping attributeN to the header shib_attributeN,
+	 *         requiring the first two, and mapping "entitlement" to the
+	 *         multivalued header shib_entitlement.
+	 */
+	static Properties configuration(int attributes) {
+		Properties configuration = new Properties();
+		configuration.setProperty("shib.login", "false");
+		for (int i = 0; i < attributes; i++) {
+			configuration.setProperty("shib.attribute.attribute" + i,
+					"shib_attribute" + i);
+		}
+		configuration.setProperty("shib.attribute.entitlement",
+				"shib_entitlement");
+		configuration.setProperty("shib.require", "attribute0, attribute1");
+		return configuration;
+	}
+
+	/**
+	 * @return Headers for the attributes of configuration(attributes), with an
+	 *         entitlement header holding the given number of values.
+	 */
+	static Map<String, Http.Header> headers(int attributes, int entitlements) {
+		Map<String, Http.Header> headers = new java.util.HashMap<String, Http.Header>();
+		for (int i = 0; i < attributes; i++) {
+			String name = "shib_attribute" + i;
+			headers.put(name, new Http.Header(name, "value-" + i
+					+ "@example.edu"));
+		}
+		headers.put("shib_entitlement", new Http.Header("shib_entitlement",
+				multivalued(entitlements)));
+		return headers;
+	}
+
+	/**
+	 * @return A realistic multivalued attribute, group DNs and urns with the
+	 *         occasional escaped semicolon.
+	 */
+	static String multivalued(int values) {
+		StringBuilder attribute = new StringBuilder();
+		for (int i = 0; i < values; i++) {
+			if (i > 0)
+				attribute.append(';');
+			if (i % 10 == 9)
+				attribute.append("urn:mace:example.edu:entitlement:app\\;role-")
+						.append(i);
+			else
+				attribute.append("cn=group-").append(i)
+						.append(",ou=groups,dc=example,dc=edu");
+		}
+		return attribute.toString();
+	}
+
+	/**
+	 * Start a new GET request for the given action, with an empty session and
+	 * flash, and make it the current request.
+	 */
+	static Http.Request request(String action, Map<String, Http.Header> headers) {
+		Http.Request request = new Http.Request();
+		request.method = "GET";
+		request.action = action;
+		request.url = "/" + action;
+		request.path = request.url;
+		request.querystring = "";
+		request.body = new ByteArrayInputStream(new byte[0]);
+		request.headers.putAll(headers);
+
+		Http.Request.current.set(request);
+		Http.Response.current.set(new Http.Response());
+		Scope.Session.current.set(new Scope.Session());
+		Scope.Flash.current.set(new Scope.Flash());
+		Scope.Params.current.set(new Scope.Params());
+		request.params = Scope.Params.current();
+
+		setController("request", request);
+		setController("response", Http.Response.current());
+		setController("session", Scope.Session.current());
+		setController("flash", Scope.Flash.current());
+		setController("params", Scope.Params.current());
+		return request;
+	}
+
+	/**
+	 * Point one of the controller's static scope fields at the current value.
+	 */
+	private static void setController(String name, Object value) {
+		try {
+			Field field = Controller.class.getDeclaredField(name);
+			field.setAccessible(true);
+			field.set(null, value);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * An application classloader without any application classes, so the
+	 * module's own Security class is used.
+	 */
+	private static class StandInClassloader extends ApplicationClassloader {
+
+		@Override
+		public List<Class> getAssignableClasses(Class clazz) {
+			return Collections.emptyList();
+		}
+	}
+}
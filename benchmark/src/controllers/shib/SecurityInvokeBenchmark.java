@@ -0,0 +1,54 @@
+package controllers.shib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import play.mvc.Http;
+import play.utils.Java;
+
+/**
+ * Dispatching a hook to the application's Security class, compared with the
+ * uncached reflective lookup Security.invoke() used to do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SecurityInvokeBenchmark {
+
+	@Setup
+	public void setup() {
+		PlayStandIn.start(PlayStandIn.configuration(3));
+		PlayStandIn.request("Administrative.restricted",
+				java.util.Collections.<String, Http.Header> emptyMap());
+		play.mvc.Scope.Session.current().put("shibboleth",
+				String.valueOf(System.currentTimeMillis()));
+	}
+
+	@Benchmark
+	public Object check() throws Throwable {
+		return Security.invoke("check", "isAdmin");
+	}
+
+	@Benchmark
+	public Object isConnected() throws Throwable {
+		return Security.invoke("isConnected");
+	}
+
+	@Benchmark
+	public Object uncachedCheck() throws Throwable {
+		return Java.invokeStaticOrParent(Security.class, "check", "isAdmin");
+	}
+}
@@ -0,0 +1,63 @@
+package controllers.shib;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting multivalued attributes, such as isMemberOf or entitlement
+ * headers, into their values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SplitBenchmark {
+
+	@Param({ "1", "10", "100", "500" })
+	int values;
+
+	String attribute;
+
+	@Setup
+	public void setup() {
+		attribute = PlayStandIn.multivalued(values);
+	}
+
+	@Benchmark
+	public List<String> list() {
+		return Shibboleth.split(attribute);
+	}
+
+	@Benchmark
+	public Set<String> set() {
+		return Shibboleth.split(attribute, new HashSet<String>());
+	}
+
+	@Benchmark
+	public int handler() {
+		final int[] length = { 0 };
+		Shibboleth.split(attribute, new Shibboleth.ValueHandler() {
+			public boolean value(String value) {
+				length[0] += value.length();
+				return true;
+			}
+		});
+		return length[0];
+	}
+}
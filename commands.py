@@ -1,10 +1,27 @@
 # Here you can create play commands that are specific to the module, and extend existing commands
 
+import getopt
+import math
+import sys
+import threading
+import time
+
+try:
+    import httplib
+    from urlparse import urlparse
+except ImportError:
+    import http.client as httplib
+    from urllib.parse import urlparse
+
 MODULE = 'Shibboleth'
 
 # Commands that are specific to your module
 
-COMMANDS = ['Shibboleth:hello']
+COMMANDS = ['Shibboleth:hello', 'Shibboleth:loadtest']
+
+HELP = {
+    'Shibboleth:loadtest': 'Drive the login flow of a running application in mock mode and report latencies'
+}
 
 def execute(**kargs):
     command = kargs.get("command")
@@ -13,7 +30,10 @@ def execute(**kargs):
     env = kargs.get("env")
 
     if command == "Shibboleth:hello":
-        print "~ Hello"
+        print("~ Hello")
+
+    if command == "Shibboleth:loadtest":
+        loadtest(args)
 
 
 # This will be executed before any command (new, run...)
@@ -33,3 +53,182 @@ def after(**kargs):
 
     if command == "new":
         pass
+
+
+# Load test
+#
+# Drives the whole login flow against an application already running with
+# shib = mock, such as sample-app-with-tests started with "play test",
+# following the redirects from the @Check protected page until it is served:
+#
+#   1. the protected page, which redirects to login (with shib.login = true),
+#      or logs the user in and redirects back to itself, or with
+#      shib.login.inline logs the user in and is served at once,
+#   2. login, which redirects to authenticate,
+#   3. authenticate, which redirects back to the protected page,
+#   4. any other redirects on the way,
+#   5. the protected page again, now logged in.
+#
+# Each simulated user has its own cookies, and when --identities is given
+# logs in as a different identity from the application's mock identity pool.
+
+STEPS = ['protected (anonymous)', 'login', 'authenticate', 'other redirects', 'protected (logged in)']
+
+# The most redirects a flow may follow before it counts as failed
+MAX_REDIRECTS = 5
+
+def loadtest(args):
+    url = 'http://localhost:9000'
+    path = '/restricted'
+    users = 20
+    flows = 1000
+    identities = 0
+    try:
+        optlist, args = getopt.getopt(args, '', ['url=', 'path=', 'users=', 'flows=', 'identities='])
+    except getopt.GetoptError:
+        print("~ Usage: play Shibboleth:loadtest [--url=http://localhost:9000] [--path=/restricted] [--users=20] [--flows=1000] [--identities=0]")
+        sys.exit(-1)
+    for o, a in optlist:
+        if o == '--url':
+            url = a.rstrip('/')
+        if o == '--path':
+            path = a
+        if o == '--users':
+            users = int(a)
+        if o == '--flows':
+            flows = int(a)
+        if o == '--identities':
+            identities = int(a)
+
+    target = urlparse(url)
+    state = {'next': 0, 'lock': threading.Lock(), 'failures': []}
+    latencies = [[] for step in STEPS]
+
+    def claim():
+        state['lock'].acquire()
+        try:
+            if state['next'] >= flows:
+                return None
+            state['next'] += 1
+            return state['next'] - 1
+        finally:
+            state['lock'].release()
+
+    def user():
+        connection = None
+        timings = [[] for step in STEPS]
+        failures = []
+        while True:
+            flow = claim()
+            if flow is None:
+                break
+            if connection is None:
+                connection = httplib.HTTPConnection(target.hostname, target.port or 80, timeout=30)
+            try:
+                run_flow(connection, path, flow, identities, timings)
+            except Exception:
+                failures.append(str(sys.exc_info()[1]))
+                connection.close()
+                connection = None
+        if connection is not None:
+            connection.close()
+        state['lock'].acquire()
+        try:
+            for i in range(len(STEPS)):
+                latencies[i].extend(timings[i])
+            state['failures'].extend(failures)
+        finally:
+            state['lock'].release()
+
+    print("~ Running %d login flows against %s%s with %d concurrent users" % (flows, url, path, users))
+    started = time.time()
+    threads = [threading.Thread(target=user) for i in range(users)]
+    for thread in threads:
+        thread.start()
+    for thread in threads:
+        thread.join()
+    elapsed = time.time() - started
+
+    print("~")
+    print("~ %-24s %8s %10s %9s %9s %9s" % ('step', 'requests', 'req/s', 'p50 ms', 'p99 ms', 'p999 ms'))
+    for i in range(len(STEPS)):
+        times = sorted(latencies[i])
+        if not times:
+            continue
+        print("~ %-24s %8d %10.1f %9.2f %9.2f %9.2f" % (STEPS[i], len(times), len(times) / elapsed,
+            percentile(times, 0.5), percentile(times, 0.99), percentile(times, 0.999)))
+    completed = flows - len(state['failures'])
+    print("~")
+    print("~ %d flows completed in %.2fs, %.1f flows/s, %d failed" % (completed, elapsed, completed / elapsed, len(state['failures'])))
+    for failure in state['failures'][:5]:
+        print("~   " + failure)
+    if state['failures']:
+        sys.exit(1)
+
+def run_flow(connection, path, flow, identities, timings):
+    cookies = {}
+    if identities > 0:
+        # Passed on to login, or used by a login made on the protected page.
+        path += ('&' if '?' in path else '?') + 'identity=%d' % (flow % identities)
+    url = path
+    for hop in range(MAX_REDIRECTS + 1):
+        started = time.time()
+        status, location = request(connection, url, cookies)
+        elapsed = (time.time() - started) * 1000
+        if status == 200:
+            timings[0 if hop == 0 else len(STEPS) - 1].append(elapsed)
+            return
+        if status not in (302, 303) or not location:
+            raise Exception('GET %s returned %d, expected a redirect or 200' % (url, status))
+        timings[step(url, hop)].append(elapsed)
+        url = location
+    raise Exception('GET %s took more than %d redirects' % (path, MAX_REDIRECTS))
+
+def step(url, hop):
+    """The step a redirecting request belongs to, see STEPS."""
+    if hop == 0:
+        return 0
+    path = urlparse(url).path
+    if path.endswith('/login'):
+        return 1
+    if path.endswith('/authenticate'):
+        return 2
+    return 3
+
+def request(connection, url, cookies):
+    """Make one request, keeping its cookies, and return its status and where it redirects to."""
+    parsed = urlparse(url)
+    path = parsed.path or '/'
+    if parsed.query:
+        path += '?' + parsed.query
+    headers = {}
+    if cookies:
+        headers['Cookie'] = '; '.join(['%s=%s' % (name, value) for name, value in cookies.items()])
+
+    connection.request('GET', path, headers=headers)
+    response = connection.getresponse()
+    response.read()
+
+    for header, value in response.getheaders():
+        if header.lower() == 'set-cookie':
+            set_cookie(cookies, value)
+    return response.status, response.getheader('Location')
+
+def set_cookie(cookies, header):
+    # Several cookies may be folded into one header, split them on the commas
+    # which start a new name=value pair rather than an expires date.
+    for cookie in header.split(','):
+        pair = cookie.split(';')[0].strip()
+        if '=' not in pair or pair.lower().startswith('expires') or ' ' in pair.split('=')[0]:
+            continue
+        name, value = pair.split('=', 1)
+        attributes = cookie.lower()
+        if value == '' or 'max-age=0' in attributes:
+            cookies.pop(name, None)
+        else:
+            cookies[name] = value
+
+def percentile(times, p):
+    if not times:
+        return 0.0
+    return times[min(len(times) - 1, max(0, int(math.ceil(p * len(times))) - 1))]
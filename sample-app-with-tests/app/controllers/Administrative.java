@@ -24,4 +24,14 @@ public class Administrative extends Controller {
     public static void restricted() {
     	render();
     }
+
+	@Check(value = { "isNobody", "isAdmin" }, mode = Check.Mode.ANY)
+	public static void anyOf() {
+		renderText("Any of");
+	}
+
+	@Check({ "isAdmin", "isNobody" })
+	public static void allOf() {
+		renderText("All of");
+	}
 }
\ No newline at end of file
@@ -4,9 +4,11 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import play.Logger;
 import play.Play;
+import play.libs.F.Promise;
 import play.utils.Java;
 
 /**
@@ -18,6 +20,9 @@ import play.utils.Java;
  */
 public class Security extends controllers.shib.Security {
 
+	/** Work for onAuthenticatedAsync() to start, set by the tests */
+	public static volatile Callable<?> asyncWork = null;
+
 	/**
 	 * This method checks that a profile is allowed to view this page/method.
 	 * This method is called prior to the method's controller annotated with the
@@ -28,6 +33,8 @@ public class Security extends controllers.shib.Security {
 	 */
 	static boolean check(String profile) {
 		Logger.debug("Security: Security.profile(\""+profile+"\")");
+		if ("isNobody".equals(profile))
+			return false;
 		if (isConnected())
 			return true;
 		else
@@ -54,6 +61,16 @@ public class Security extends controllers.shib.Security {
 		Logger.debug("Security: Security.onAuthenticated()");
 	}
 
+	/**
+	 * This method is called after onAuthenticated(), for work that should not
+	 * hold up a request thread. The login waits for the promise returned.
+	 */
+	static Promise<?> onAuthenticatedAsync() {
+		Logger.debug("Security: Security.onAuthenticatedAsync()");
+		Callable<?> work = asyncWork;
+		return work == null ? null : inBackground(work);
+	}
+
 	/**
 	 * This method is called before a user tries to sign off.
 	 */
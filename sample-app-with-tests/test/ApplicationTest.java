@@ -1,11 +1,47 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.StringReader;
+import java.net.URLEncoder;
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.h2.jdbcx.JdbcDataSource;
 import org.junit.*;
 
+import controllers.shib.AttributeCodec;
+import controllers.shib.Attributes;
 import controllers.shib.MockShibboleth;
 import controllers.shib.Shibboleth;
 import play.Logger;
+import play.Play;
+import play.exceptions.ConfigurationException;
+import play.modules.shibboleth.AttributeTransform;
+import play.modules.shibboleth.EnrichmentCache;
+import play.modules.shibboleth.FileAttributeStore;
+import play.modules.shibboleth.HeaderCapture;
+import play.modules.shibboleth.JdbcUserRecordSink;
+import play.modules.shibboleth.LoginThrottle;
+import play.modules.shibboleth.MemoryAttributeStore;
+import play.modules.shibboleth.ProfileRules;
+import play.modules.shibboleth.RevocationRegistry;
+import play.modules.shibboleth.ShibbolethConfig;
+import play.modules.shibboleth.ShibbolethPlugin;
+import play.modules.shibboleth.UserRecord;
+import play.modules.shibboleth.UserRecordSink;
+import play.modules.shibboleth.WriteBehind;
 import play.test.*;
 import play.mvc.*;
 import play.mvc.Http.*;
@@ -85,6 +121,25 @@ public class ApplicationTest extends FunctionalTest {
     }
     
     
+    /**
+     * Test that an action checking any of its profiles only needs one of
+     * them, while one checking all of them needs every one.
+     */
+    @Test
+    public void testCheckModes() {
+    	MockShibboleth.removeAll();
+    	MockShibboleth.set("SHIB_email","bob@gmail.com");
+    	MockShibboleth.set("SHIB_givenName", "Bob");
+    	MockShibboleth.set("SHIB_sn", "Smith");
+    	
+    	Response response = GET(Router.reverse("Administrative.anyOf").url, true);
+    	assertIsOk(response);
+    	assertContentMatch("Any of", response);
+    	
+    	response = GET(Router.reverse("Administrative.allOf").url, true);
+    	assertStatus(403, response);
+    }
+    
     /**
      * If no attributes are received when by the application then an error should
      * result.
@@ -259,8 +314,820 @@ public class ApplicationTest extends FunctionalTest {
 			assertEquals(1, result.size());
 			assertEquals("One;;Two", result.get(0));
 		}
+		{
+			final String test = ";One\\\\;Two;;";
+			List<String> result = Shibboleth.split(test);
+			assertNotNull(result);
+			assertEquals(2, result.size());
+			assertEquals("One\\", result.get(0));
+			assertEquals("Two", result.get(1));
+		}
+		{
+			final String test = ";One\\\\\\;Two;;";
+			List<String> result = Shibboleth.split(test);
+			assertNotNull(result);
+			assertEquals(1, result.size());
+			assertEquals("One\\;Two", result.get(0));
+		}
+		{
+			final String test = "One;Two;One";
+			Set<String> result = Shibboleth.split(test, new HashSet<String>());
+			assertEquals(2, result.size());
+			assertTrue(result.contains("One"));
+			assertTrue(result.contains("Two"));
+		}
+		{
+			final String test = "One;Two;Three";
+			final List<String> seen = new ArrayList<String>();
+			boolean completed = Shibboleth.split(test, new Shibboleth.ValueHandler() {
+				public boolean value(String value) {
+					seen.add(value);
+					return !"Two".equals(value);
+				}
+			});
+			assertFalse(completed);
+			assertEquals(2, seen.size());
+			assertEquals("Two", seen.get(1));
+		}
 	}
 
+    /**
+     * Test the compact session encoding of attributes.
+     */
+    @Test
+    public void testCompactEncoding() {
+    	ShibbolethConfig config = ShibbolethConfig.current();
+    	
+    	Map<String, String> attributes = new HashMap<String, String>();
+    	attributes.put("email", "someone@your-domain.net");
+    	attributes.put("firstName", "Some;One\\;Else");
+    	attributes.put("lastName", "One;;One");
+    	attributes.put("unmapped", "someone@your-domain.net");
+    	
+    	String encoded = AttributeCodec.encode(attributes, config);
+    	assertEquals(attributes, AttributeCodec.decode(encoded, config));
+    	assertNull(AttributeCodec.decode("1garbage", config));
+    	
+    	// Backslashes before a semicolon, or ending a value, are doubled.
+    	List<String> values = Arrays.asList("Domain\\", "One\\;Two", "Last\\");
+    	assertEquals("Domain\\\\;One\\\\\\;Two;Last\\", AttributeCodec.join(values));
+    	assertEquals(values, Shibboleth.split(AttributeCodec.join(values)));
+    	assertEquals("Domain\\", AttributeCodec.join(Arrays.asList("Domain\\")));
+    }
+
+    /**
+     * Test the parsed attribute view.
+     */
+    @Test
+    public void testAttributes() {
+    	Map<String, String> raw = new HashMap<String, String>();
+    	raw.put("email", "someone@your-domain.net");
+    	raw.put("entitlement", "One;Two\\;Three;Four");
+    	Attributes attributes = new Attributes(raw);
+    	
+    	assertEquals("someone@your-domain.net", attributes.first("email"));
+    	assertEquals("One", attributes.first("entitlement"));
+    	assertEquals(3, attributes.values("entitlement").size());
+    	assertTrue(attributes.contains("entitlement", "Two;Three"));
+    	assertFalse(attributes.contains("entitlement", "Two"));
+    	assertNull(attributes.first("missing"));
+    	assertTrue(attributes.values("missing").isEmpty());
+    	assertFalse(attributes.contains("missing", "One"));
+    	assertTrue(attributes.contains("entitlement", "Four"));
+    	assertFalse(attributes.contains("email", "Four"));
+    	
+    	// The first test of an attribute scans its raw value in place.
+    	attributes = new Attributes(raw);
+    	assertTrue(attributes.contains("entitlement", "Two;Three"));
+    	assertTrue(attributes.contains("entitlement", "One"));
+    	assertFalse(attributes.contains("entitlement", "Two"));
+    	assertTrue(new Attributes(raw).contains("entitlement", "Four"));
+    	assertFalse(new Attributes(raw).contains("entitlement", "Thre"));
+    	assertFalse(new Attributes(raw).contains("entitlement", ""));
+    	assertFalse(new Attributes(raw).contains("email", "someone"));
+    }
+
+    /**
+     * Test logging in as identities from a generated pool.
+     */
+    @Test
+    public void testMockIdentityPool() {
+    	Play.configuration.setProperty("shib.identities.generate", "3");
+    	Play.configuration.setProperty("shib.identities.multivalue.SHIB_isMemberOf", "5");
+    	try {
+    		MockShibboleth.reload();
+    		MockShibboleth.set("SHIB_email", "user{n}@your-domain.net");
+    		MockShibboleth.set("SHIB_sn", "Smith{n}");
+    		assertEquals(3, MockShibboleth.pool().size());
+    		assertEquals("user1@your-domain.net", MockShibboleth.pool().select("1").get("SHIB_email").value());
+    		assertEquals(5, Shibboleth.split(MockShibboleth.pool().select("1").get("SHIB_isMemberOf").value()).size());
+    		
+    		final String AUTHENTICATE_URL = Router.reverse("shib.Shibboleth.authenticate").url;
+    		Response response = GET(AUTHENTICATE_URL + "?identity=2", true);
+    		assertIsOk(response);
+    		assertContentMatch("<dt>email</dt>[\\s]*<dd>user2\\@your-domain\\.net</dd>", response);
+    		
+    		// Login passes the identity along, and every header of a login
+    		// comes from the same identity.
+    		final String LOGIN_URL = Router.reverse("shib.Shibboleth.login").url;
+    		response = GET(LOGIN_URL + "?identity=1", true);
+    		assertIsOk(response);
+    		assertContentMatch("<dt>email</dt>[\\s]*<dd>user1\\@your-domain\\.net</dd>", response);
+    		assertContentMatch("<dt>lastName</dt>[\\s]*<dd>Smith1</dd>", response);
+    	} finally {
+    		Play.configuration.remove("shib.identities.generate");
+    		Play.configuration.remove("shib.identities.multivalue.SHIB_isMemberOf");
+    		MockShibboleth.reload();
+    	}
+    }
+
+    /**
+     * Test that a login waits for the onAuthenticatedAsync() hook's work,
+     * without repeating the login, and carries on without the work when it
+     * fails, is refused or runs late. A login made by checkAccess() does not
+     * wait at all.
+     */
+    @Test
+    public void testAsyncHook() {
+    	MockShibboleth.removeAll();
+    	MockShibboleth.set("SHIB_email", "bob@gmail.com");
+    	MockShibboleth.set("SHIB_givenName", "Bob");
+    	MockShibboleth.set("SHIB_sn", "Smith");
+    	final String LOGIN_URL = Router.reverse("shib.Shibboleth.login").url;
+    	final AtomicInteger calls = new AtomicInteger();
+    	final CountDownLatch release = new CountDownLatch(1);
+    	
+    	try {
+    		controllers.Security.asyncWork = new Callable<Object>() {
+    			public Object call() {
+    				return calls.incrementAndGet();
+    			}
+    		};
+    		Response response = GET(LOGIN_URL, true);
+    		assertIsOk(response);
+    		assertContentMatch("<dt>email</dt>[\\s]*<dd>bob\\@gmail\\.com</dd>", response);
+    		assertEquals(1, calls.get());
+    		
+    		controllers.Security.asyncWork = new Callable<Object>() {
+    			public Object call() {
+    				throw new IllegalStateException("The directory is down");
+    			}
+    		};
+    		assertIsOk(GET(LOGIN_URL, true));
+    		
+    		Play.configuration.setProperty("shib.hooks.pending", "0");
+    		Play.configuration.setProperty("shib.hooks.timeout", "1s");
+    		ShibbolethConfig.reload();
+    		assertIsOk(GET(LOGIN_URL, true));
+    		
+    		Play.configuration.remove("shib.hooks.pending");
+    		ShibbolethConfig.reload();
+    		controllers.Security.asyncWork = new Callable<Object>() {
+    			public Object call() throws Exception {
+    				release.await();
+    				return null;
+    			}
+    		};
+    		assertIsOk(GET(LOGIN_URL, true));
+    		
+    		Play.configuration.setProperty("shib.hooks.timeout", "60s");
+    		ShibbolethConfig.reload();
+    		GET(Router.reverse("shib.Shibboleth.logout").url);
+    		long started = System.currentTimeMillis();
+    		response = GET(Router.reverse("Administrative.restricted").url);
+    		assertStatus(302, response);
+    		assertTrue(System.currentTimeMillis() - started < 30000);
+    	} finally {
+    		release.countDown();
+    		controllers.Security.asyncWork = null;
+    		Play.configuration.remove("shib.hooks.pending");
+    		Play.configuration.remove("shib.hooks.timeout");
+    		ShibbolethConfig.reload();
+    	}
+    }
+
+    /**
+     * Test that concurrent loads of the same user share one load, and that
+     * loaded values expire.
+     */
+    @Test
+    public void testEnrichmentCache() throws Exception {
+    	final EnrichmentCache<String> cache = new EnrichmentCache<String>(2, 60000);
+    	final AtomicInteger loads = new AtomicInteger();
+    	final CountDownLatch started = new CountDownLatch(8);
+    	final CountDownLatch loading = new CountDownLatch(1);
+    	final CountDownLatch release = new CountDownLatch(1);
+    	final Callable<String> loader = new Callable<String>() {
+    		public String call() throws Exception {
+    			loads.incrementAndGet();
+    			loading.countDown();
+    			release.await();
+    			return "record";
+    		}
+    	};
+    	
+    	List<Thread> threads = new ArrayList<Thread>();
+    	final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+    	for (int i = 0; i < 8; i++) {
+    		Thread thread = new Thread() {
+    			public void run() {
+    				started.countDown();
+    				try {
+    					results.add(cache.get("bob@gmail.com", loader));
+    				} catch (Exception e) {
+    					results.add(e.toString());
+    				}
+    			}
+    		};
+    		threads.add(thread);
+    		thread.start();
+    	}
+    	// Every thread has started, and one is loading, before the load ends.
+    	started.await();
+    	loading.await();
+    	release.countDown();
+    	for (Thread thread : threads)
+    		thread.join();
+    	
+    	assertEquals(1, loads.get());
+    	assertEquals(8, results.size());
+    	assertEquals(Collections.nCopies(8, "record"), results);
+    	
+    	// Expired values are loaded again, and the least recently used evicted.
+    	EnrichmentCache<String> expiring = new EnrichmentCache<String>(2, -1);
+    	expiring.get("bob@gmail.com", loader);
+    	expiring.get("bob@gmail.com", loader);
+    	assertEquals(3, loads.get());
+    	cache.get("someone@your-domain.net", loader);
+    	cache.get("someoneelse@your-domain.net", loader);
+    	assertEquals(2, cache.size());
+    	cache.get("bob@gmail.com", loader);
+    	assertEquals(6, loads.get());
+    }
+
+    /**
+     * Test compiling and applying attribute transforms, and that transforms
+     * are not mistaken for attribute mappings.
+     */
+    @Test
+    public void testAttributeTransforms() throws Exception {
+    	AttributeTransform email = AttributeTransform.compile("email", "trim, lowercase");
+    	assertEquals("bob@gmail.com", email.apply(" Bob@GMail.com "));
+    	
+    	AttributeTransform eppn = AttributeTransform.compile("eppn", "stripScope");
+    	assertEquals("bob", eppn.apply("bob@tamu.edu"));
+    	assertEquals("bob", eppn.apply("bob"));
+    	
+    	AttributeTransform groups = AttributeTransform.compile("groups", "extract(\"^cn=([^,]+)\"), filter(\"admins|staff\")");
+    	assertEquals("admins", groups.apply("cn=admins,ou=groups,dc=tamu,dc=edu"));
+    	assertNull(groups.apply("cn=students,ou=groups,dc=tamu,dc=edu"));
+    	assertNull(groups.apply("ou=groups,dc=tamu,dc=edu"));
+    	
+    	// application.conf drops a lone backslash, so those in a regex are doubled.
+    	Properties conf = new Properties();
+    	conf.load(new StringReader("doubled = extract(\"(\\\\d+)\")\nsingle = extract(\"(\\d+)\")\n"));
+    	assertEquals("42", AttributeTransform.compile("id", conf.getProperty("doubled")).apply("id-42"));
+    	assertNull(AttributeTransform.compile("id", conf.getProperty("single")).apply("42"));
+    	
+    	assertNull(AttributeTransform.compile("email", " "));
+    	for (String broken : new String[] { "uppercase", "extract", "filter(\"[\")", "lowercase trim" }) {
+    		try {
+    			AttributeTransform.compile("email", broken);
+    			fail("Expected '" + broken + "' to be rejected");
+    		} catch (ConfigurationException expected) {
+    		}
+    	}
+    	
+    	Play.configuration.setProperty("shib.attribute.email.transform", "lowercase");
+    	try {
+    		ShibbolethConfig config = ShibbolethConfig.reload();
+    		assertEquals(-1, config.attributeIndex("email.transform"));
+    		assertNotNull(config.transform(config.attributeIndex("email")));
+    		
+    		// Only a mapped attribute's .transform key is a transform.
+    		Play.configuration.setProperty("shib.attribute.transform", "SHIB_transform");
+    		Play.configuration.setProperty("shib.attribute.unmapped.transform", "SHIB_unmapped");
+    		config = ShibbolethConfig.reload();
+    		assertTrue(config.attributeIndex("transform") >= 0);
+    		assertNull(config.transform(config.attributeIndex("transform")));
+    		assertTrue(config.attributeIndex("unmapped.transform") >= 0);
+    		assertEquals(-1, config.attributeIndex("email.transform"));
+    	} finally {
+    		Play.configuration.remove("shib.attribute.email.transform");
+    		Play.configuration.remove("shib.attribute.transform");
+    		Play.configuration.remove("shib.attribute.unmapped.transform");
+    		ShibbolethConfig.reload();
+    	}
+    }
+    
+    /**
+     * Test that one in N logins is sampled, that the ring keeps the newest
+     * captures, and that sensitive headers are redacted.
+     */
+    @Test
+    public void testHeaderCapture() {
+    	HeaderCapture capture = new HeaderCapture(3, 2, Collections.singleton("Cookie"));
+    	assertFalse(capture.sample());
+    	assertTrue(capture.sample());
+    	assertFalse(capture.sample());
+    	
+    	for (int i = 0; i < 4; i++) {
+    		Map<String, Header> headers = new HashMap<String, Header>();
+    		headers.put("SHIB_email", new Header("SHIB_email", "user" + i + "@gmail.com"));
+    		headers.put("cookie", new Header("cookie", "PLAY_SESSION=secret"));
+    		capture.capture("sampled", "127.0.0.1", headers);
+    	}
+    	
+    	List<HeaderCapture.Capture> captures = capture.captures();
+    	assertEquals(3, captures.size());
+    	HeaderCapture.Capture newest = captures.get(0);
+    	assertEquals("SHIB_email", newest.names[0]);
+    	assertEquals("user3@gmail.com", newest.values[0].get(0));
+    	assertEquals("cookie", newest.names[1]);
+    	assertEquals(HeaderCapture.REDACTED, newest.values[1].get(0));
+    	assertEquals("user1@gmail.com", captures.get(2).values[0].get(0));
+    }
+    
+    /**
+     * Test that each client may only start a burst of logins at once, that
+     * clients are throttled separately, and that only so many are tracked.
+     */
+    @Test
+    public void testLoginThrottle() throws Exception {
+    	LoginThrottle throttle = new LoginThrottle(6, 3, 100);
+    	for (int i = 0; i < 3; i++)
+    		assertTrue(throttle.tryAcquire("10.0.0.1"));
+    	assertFalse(throttle.tryAcquire("10.0.0.1"));
+    	assertTrue(throttle.tryAcquire("10.0.0.2"));
+    	assertEquals(2, throttle.size());
+    	
+    	// Idle clients are forgotten, at most once a second, and while the
+    	// table is full of clients new ones are refused.
+    	throttle = new LoginThrottle(600000, 1, 2);
+    	assertTrue(throttle.tryAcquire("10.0.0.1"));
+    	assertTrue(throttle.tryAcquire("10.0.0.2"));
+    	Thread.sleep(5);
+    	assertTrue(throttle.tryAcquire("10.0.0.3"));
+    	assertEquals(1, throttle.size());
+    	assertTrue(throttle.tryAcquire("10.0.0.4"));
+    	assertFalse(throttle.tryAcquire("10.0.0.5"));
+    	assertEquals(2, throttle.size());
+    	Thread.sleep(5);
+    	assertTrue(throttle.tryAcquire("10.0.0.4"));
+    }
+    
+    /**
+     * Test that a login kept by the browser takes no extra round trips, that
+     * login round trips are counted in the flash, or in the return url, before
+     * any fragment, when the flash is not kept either, and that a loop is
+     * stopped.
+     */
+    @Test
+    public void testLoginLoops() throws Exception {
+    	clearCookies();
+    	MockShibboleth.removeAll();
+    	MockShibboleth.set("SHIB_email", "bob@gmail.com");
+    	MockShibboleth.set("SHIB_givenName", "Bob");
+    	MockShibboleth.set("SHIB_sn", "Smith");
+    	final String LOGIN_URL = Router.reverse("shib.Shibboleth.login").url;
+    	final String AUTHENTICATE_URL = Router.reverse("shib.Shibboleth.authenticate").url;
+    	final String RESTRICTED_URL = Router.reverse("Administrative.restricted").url;
+    	long now = System.currentTimeMillis() / 1000;
+    	
+    	Response response = GET(AUTHENTICATE_URL + "?return=" + URLEncoder.encode("/restricted?x=1#top", "UTF-8"));
+    	assertStatus(302, response);
+    	assertTrue(response.getHeader("Location").matches(".*/restricted\\?x=1&shibHops=1-[0-9]+#top"));
+    	
+    	response = GET(AUTHENTICATE_URL + "?return=" + URLEncoder.encode("/restricted?shibHops=3-" + now, "UTF-8"));
+    	assertStatus(302, response);
+    	assertTrue(response.getHeader("Location").endsWith("/restricted?shibHops=4-" + now));
+    	
+    	response = GET(AUTHENTICATE_URL + "?return=" + URLEncoder.encode("/restricted?shibHops=5-" + now, "UTF-8"));
+    	assertStatus(400, response);
+    	
+    	// Logged in, the parameter is not added, or left behind.
+    	response = GET(LOGIN_URL);
+    	assertStatus(302, response);
+    	response = GET(response.getHeader("Location"));
+    	assertStatus(302, response);
+    	String location = response.getHeader("Location");
+    	assertFalse(location, location.contains("shibHops"));
+    	assertIsOk(GET(location));
+    	
+    	assertStatus(302, GET(LOGIN_URL));
+    	response = GET(AUTHENTICATE_URL + "?return=" + URLEncoder.encode("/restricted?shibHops=1-" + now, "UTF-8"));
+    	assertStatus(302, response);
+    	assertFalse(response.getHeader("Location").contains("shibHops"));
+    	
+    	// A browser keeping the flash, but not the session, is counted there.
+    	Http.Cookie kept = response.cookies.get("PLAY_FLASH");
+    	for (int i = 2; i <= 5; i++) {
+    		response = GET(withoutSession(kept), RESTRICTED_URL);
+    		assertStatus(302, response);
+    		assertTrue(response.getHeader("Location").endsWith("/restricted"));
+    		kept = response.cookies.get("PLAY_FLASH");
+    	}
+    	assertStatus(400, GET(withoutSession(kept), RESTRICTED_URL));
+    	clearCookies();
+    }
+    
+    /**
+     * @return A new request carrying only the flash cookie, as from a browser
+     *         which did not keep the session cookie.
+     */
+    private static Request withoutSession(Http.Cookie flash) {
+    	clearCookies();
+    	Request request = newRequest();
+    	request.cookies.put(flash.name, flash);
+    	return request;
+    }
+
+    /**
+     * Test that a revocation applies to logins made before it, and not to
+     * logins made afterwards or to other keys, and that a revoked login stays
+     * refused once its revocation is forgotten.
+     */
+    @Test
+    public void testRevocationRegistry() {
+    	RevocationRegistry registry = new RevocationRegistry(100, 60000);
+    	long now = System.currentTimeMillis();
+    	registry.revoke("bob@gmail.com", now);
+    	
+    	assertTrue(registry.isRevoked("bob@gmail.com", now - 1000));
+    	assertTrue(registry.isRevoked("bob@gmail.com", now));
+    	assertFalse(registry.isRevoked("bob@gmail.com", now + 1));
+    	assertFalse(registry.isRevoked(null, now));
+    	for (int i = 0; i < 1000; i++)
+    		assertFalse(registry.isRevoked("user" + i + "@gmail.com", now));
+    	assertEquals(1, registry.size());
+    	
+    	// Once the revocation is forgotten, the login is still refused.
+    	long later = now + 120000;
+    	registry.revoke("someone@your-domain.net", later);
+    	assertEquals(1, registry.size());
+    	assertTrue(registry.isRevoked("bob@gmail.com", now, later));
+    	assertTrue(registry.isRevoked(null, now, later));
+    	assertFalse(registry.isRevoked("bob@gmail.com", later - 1000, later));
+    }
+    
+    /**
+     * Test that user records are coalesced, skipped when unchanged, and
+     * written to an embedded database, and that retries back off while the
+     * sink keeps failing.
+     */
+    @Test
+    public void testWriteBehind() throws Exception {
+    	JdbcDataSource database = new JdbcDataSource();
+    	database.setURL("jdbc:h2:mem:shibboleth;DB_CLOSE_DELAY=-1");
+    	WriteBehind records = new WriteBehind(new JdbcUserRecordSink(database, "shibboleth_users", true), 10, 60000, 100);
+    	try {
+    		Map<String, String> attributes = new HashMap<String, String>();
+    		attributes.put("email", "bob@gmail.com");
+    		attributes.put("firstName", "Bob");
+    		records.offer(new UserRecord("bob@gmail.com", attributes, 1000));
+    		attributes.put("firstName", "Robert");
+    		records.offer(new UserRecord("bob@gmail.com", attributes, 2000));
+    		records.offer(new UserRecord("someone@your-domain.net", attributes, 2000));
+    		assertEquals(2, records.pending());
+    		assertEquals(2, records.flush());
+    		
+    		// Unchanged attributes are not written again, but the login is.
+    		records.offer(new UserRecord("bob@gmail.com", attributes, 3000));
+    		assertEquals(1, records.flush());
+    		
+    		// "Aa" and "BB" have the same hash code, the change is still written.
+    		Map<String, String> colliding = new HashMap<String, String>();
+    		colliding.put("group", "Aa");
+    		records.offer(new UserRecord("collide@gmail.com", colliding, 1000));
+    		assertEquals(1, records.flush());
+    		colliding.put("group", "BB");
+    		records.offer(new UserRecord("collide@gmail.com", colliding, 2000));
+    		assertEquals(1, records.flush());
+    		
+    		Connection connection = database.getConnection();
+    		try {
+    			ResultSet rows = connection.createStatement().executeQuery(
+    					"SELECT attributes, last_login FROM shibboleth_users WHERE principal = 'bob@gmail.com'");
+    			assertTrue(rows.next());
+    			assertEquals("email=bob@gmail.com\nfirstName=Robert\n", rows.getString(1));
+    			assertEquals(3000, rows.getTimestamp(2).getTime());
+    			assertFalse(rows.next());
+    			
+    			rows = connection.createStatement().executeQuery(
+    					"SELECT attributes FROM shibboleth_users WHERE principal = 'collide@gmail.com'");
+    			assertTrue(rows.next());
+    			assertEquals("group=BB\n", rows.getString(1));
+    		} finally {
+    			connection.close();
+    		}
+    	} finally {
+    		records.close();
+    	}
+    	
+    	final AtomicInteger attempts = new AtomicInteger();
+    	final CountDownLatch down = new CountDownLatch(1);
+    	records = new WriteBehind(new UserRecordSink() {
+    		public void write(List<UserRecord> batch) throws Exception {
+    			attempts.incrementAndGet();
+    			if (down.getCount() > 0)
+    				throw new IllegalStateException("The database is down");
+    		}
+    	}, 1, 20, 100);
+    	try {
+    		Map<String, String> attributes = new HashMap<String, String>();
+    		attributes.put("email", "bob@gmail.com");
+    		records.offer(new UserRecord("bob@gmail.com", attributes, 1000));
+    		Thread.sleep(1000);
+    		// Retrying every 20ms would be some 50 attempts, backing off
+    		// they are 20ms, 40ms, 80ms, 160ms, 320ms... apart.
+    		assertTrue(attempts.get() >= 2);
+    		assertTrue(attempts.get() <= 8);
+    		assertTrue(records.failures() >= 2);
+    		assertEquals(1, records.pending());
+    		
+    		down.countDown();
+    		records.flush();
+    		assertEquals(0, records.pending());
+    		assertEquals(0, records.failures());
+    	} finally {
+    		records.close();
+    	}
+    }
+
+    /**
+     * Test compiling and evaluating declarative profile rules.
+     */
+    @Test
+    public void testProfileRules() throws Throwable {
+    	Map<String, String> raw = new HashMap<String, String>();
+    	raw.put("entitlement", "urn:x:admin;urn:x:user");
+    	raw.put("affiliation", "staff");
+    	final Attributes attributes = new Attributes(raw);
+    	
+    	Play.configuration.setProperty("shib.profile.isAdmin", "entitlement contains urn:x:admin");
+    	Play.configuration.setProperty("shib.profile.isStaff", "affiliation in (staff, faculty) and not isStudent");
+    	Play.configuration.setProperty("shib.profile.isStudent", "affiliation contains student");
+    	Play.configuration.setProperty("shib.profile.isAdmin.implies", "isEditor");
+    	Play.configuration.setProperty("shib.profile.isManager", "isStaff and isApprover");
+    	try {
+    		final ProfileRules rules = ShibbolethConfig.reload().profiles;
+    		ProfileRules.Context context = new ProfileRules.Context() {
+    			public boolean contains(String attribute, String value) {
+    				return attributes.contains(attribute, value);
+    			}
+    			public boolean hasProfile(String profile) throws Throwable {
+    				ProfileRules.Rule rule = rules.rule(profile);
+    				return rule != null ? rule.matches(this) : check(profile);
+    			}
+    			public boolean check(String profile) {
+    				return false;
+    			}
+    		};
+    		
+    		assertTrue(rules.rule("isAdmin").matches(context));
+    		assertTrue(rules.rule("isStaff").matches(context));
+    		assertFalse(rules.rule("isStudent").matches(context));
+    		assertTrue(rules.rule("isEditor").matches(context));
+    		assertNull(rules.rule("isUnknown"));
+    		
+    		// Rules are only as cacheable as the check() profiles they use.
+    		assertEquals(0, rules.checks("isAdmin").length);
+    		assertEquals(Arrays.asList("isEditor"), Arrays.asList(rules.checks("isEditor")));
+    		assertEquals(Arrays.asList("isApprover"), Arrays.asList(rules.checks("isManager")));
+    		
+    		Play.configuration.setProperty("shib.profile.isBroken", "entitlement in (urn:x:admin");
+    		try {
+    			ShibbolethConfig.reload();
+    			fail("Expected the broken rule to be rejected");
+    		} catch (ConfigurationException expected) {
+    		}
+    	} finally {
+    		for (String key : new String[] { "isAdmin", "isStaff", "isStudent", "isAdmin.implies", "isManager", "isBroken" })
+    			Play.configuration.remove("shib.profile." + key);
+    		ShibbolethConfig.reload();
+    	}
+    }
+
+    /**
+     * Test logging in inline from the request's headers, without any
+     * redirects or waiting for the onAuthenticatedAsync() hook's work, and
+     * that a missing required attribute still fails the login.
+     */
+    @Test
+    public void testInlineLogin() {
+    	final String LOGOUT_URL = Router.reverse("shib.Shibboleth.logout").url;
+    	final String RESTRICTED_URL = Router.reverse("Administrative.restricted").url;
+    	final CountDownLatch release = new CountDownLatch(1);
+    	Play.configuration.setProperty("shib.login.inline", "true");
+    	Play.configuration.setProperty("shib.hooks.timeout", "60s");
+    	ShibbolethConfig.reload();
+    	try {
+    		GET(LOGOUT_URL);
+    		MockShibboleth.removeAll();
+    		MockShibboleth.set("SHIB_email", "bob@gmail.com");
+    		MockShibboleth.set("SHIB_givenName", "Bob");
+    		MockShibboleth.set("SHIB_sn", "Smith");
+    		Response response = GET(RESTRICTED_URL);
+    		assertIsOk(response);
+    		assertContentMatch("Welcome Bob", response);
+    		
+    		GET(LOGOUT_URL);
+    		controllers.Security.asyncWork = new Callable<Object>() {
+    			public Object call() throws Exception {
+    				release.await();
+    				return null;
+    			}
+    		};
+    		long started = System.currentTimeMillis();
+    		response = GET(RESTRICTED_URL);
+    		assertIsOk(response);
+    		assertContentMatch("Welcome Bob", response);
+    		assertTrue(System.currentTimeMillis() - started < 30000);
+    		
+    		GET(LOGOUT_URL);
+    		MockShibboleth.remove("SHIB_givenName");
+    		response = GET(RESTRICTED_URL);
+    		assertStatus(500, response);
+    	} finally {
+    		release.countDown();
+    		controllers.Security.asyncWork = null;
+    		Play.configuration.remove("shib.login.inline");
+    		Play.configuration.remove("shib.hooks.timeout");
+    		ShibbolethConfig.reload();
+    	}
+    }
+
+    /**
+     * Test that logins, failed checks, logouts and missing attributes are
+     * written to the audit trail.
+     */
+    @Test
+    public void testAuditLog() throws Exception {
+    	final String LOGIN_URL = Router.reverse("shib.Shibboleth.login").url;
+    	final String LOGOUT_URL = Router.reverse("shib.Shibboleth.logout").url;
+    	File file = File.createTempFile("shibboleth-audit", ".log");
+    	file.delete();
+    	Play.configuration.setProperty("shib.audit", "true");
+    	Play.configuration.setProperty("shib.audit.file", file.getAbsolutePath());
+    	restartPlugin();
+    	try {
+    		MockShibboleth.removeAll();
+    		MockShibboleth.set("SHIB_email", "bob@gmail.com");
+    		MockShibboleth.set("SHIB_givenName", "Bob");
+    		MockShibboleth.set("SHIB_sn", "Smith");
+    		assertIsOk(GET(LOGIN_URL, true));
+    		assertStatus(403, GET(Router.reverse("Administrative.allOf").url));
+    		GET(LOGOUT_URL);
+    		MockShibboleth.remove("SHIB_givenName");
+    		assertStatus(500, GET(LOGIN_URL, true));
+    	} finally {
+    		Play.configuration.remove("shib.audit");
+    		Play.configuration.remove("shib.audit.file");
+    		// Stopping the audit trail writes out the events still buffered.
+    		restartPlugin();
+    	}
+    	
+    	String audit = read(file);
+    	file.delete();
+    	assertTrue(audit, audit.contains("\"type\":\"LOGIN\",\"principal\":\"bob@gmail.com\""));
+    	assertTrue(audit, audit.contains("\"type\":\"CHECK_FAILURE\",\"principal\":\"bob@gmail.com\""));
+    	assertTrue(audit, audit.contains("\"detail\":\"isNobody\""));
+    	assertTrue(audit, audit.contains("\"type\":\"LOGOUT\",\"principal\":\"bob@gmail.com\""));
+    	assertTrue(audit, audit.contains("\"type\":\"ATTRIBUTE_FAILURE\",\"principal\":\"bob@gmail.com\""));
+    	assertTrue(audit, audit.contains("\"detail\":\"firstName\""));
+    }
+
+    /**
+     * Test the memory and file attribute stores, and logging in with the
+     * attributes kept in a store rather than the session.
+     */
+    @Test
+    public void testAttributeStores() throws Exception {
+    	Map<String, String> attributes = new HashMap<String, String>();
+    	attributes.put("email", "bob@gmail.com");
+    	attributes.put("firstName", "Bob");
+    	
+    	// The least recently used attributes are evicted, and expired ones forgotten.
+    	MemoryAttributeStore memory = new MemoryAttributeStore(2, 60000);
+    	String handle = memory.put(attributes);
+    	assertEquals(attributes, memory.get(handle));
+    	memory.put(attributes);
+    	memory.put(attributes);
+    	assertNull(memory.get(handle));
+    	MemoryAttributeStore expiring = new MemoryAttributeStore(2, -1);
+    	assertNull(expiring.get(expiring.put(attributes)));
+    	
+    	// Files outlive the store, i.e. an application restart.
+    	File directory = File.createTempFile("shibboleth-store", "");
+    	directory.delete();
+    	FileAttributeStore files = new FileAttributeStore(directory, 10, 60000);
+    	handle = files.put(attributes);
+    	assertEquals(attributes, new FileAttributeStore(directory, 10, 60000).get(handle));
+    	files.remove(handle);
+    	assertNull(new FileAttributeStore(directory, 10, 60000).get(handle));
+    	assertNull(files.get("../application.conf"));
+    	directory.delete();
+    	
+    	Play.configuration.setProperty("shib.store", "memory");
+    	restartPlugin();
+    	try {
+    		MockShibboleth.removeAll();
+    		MockShibboleth.set("SHIB_email", "bob@gmail.com");
+    		MockShibboleth.set("SHIB_givenName", "Bob");
+    		MockShibboleth.set("SHIB_sn", "Smith");
+    		Response response = GET(Router.reverse("shib.Shibboleth.login").url, true);
+    		assertIsOk(response);
+    		assertContentMatch("<dt>shibboleth.handle</dt>", response);
+    		assertFalse(getContent(response).contains("<dt>email</dt>"));
+    		assertContentMatch("<p id=\"shib-attribute\">bob@gmail.com</p>", response);
+    	} finally {
+    		Play.configuration.remove("shib.store");
+    		restartPlugin();
+    	}
+    }
+
+    /**
+     * Test that the metrics are only served to the allowed addresses, and
+     * only when enabled.
+     */
+    @Test
+    public void testMetricsEndpoint() {
+    	final String METRICS_URL = Router.reverse("shib.Diagnostics.metrics").url;
+    	assertStatus(403, GET(METRICS_URL));
+    	
+    	Play.configuration.setProperty("shib.diagnostics.allow", "127.0.0.1");
+    	restartPlugin();
+    	try {
+    		assertStatus(404, GET(METRICS_URL));
+    		
+    		Play.configuration.setProperty("shib.metrics", "true");
+    		restartPlugin();
+    		MockShibboleth.removeAll();
+    		MockShibboleth.set("SHIB_email", "bob@gmail.com");
+    		MockShibboleth.set("SHIB_givenName", "Bob");
+    		MockShibboleth.set("SHIB_sn", "Smith");
+    		assertIsOk(GET(Router.reverse("shib.Shibboleth.login").url, true));
+    		
+    		Response response = GET(METRICS_URL);
+    		assertIsOk(response);
+    		assertContentType("text/plain", response);
+    		assertContentMatch("# TYPE shibboleth_authenticate_seconds histogram", response);
+    		assertContentMatch("shibboleth_authenticate_seconds_count [1-9]", response);
+    	} finally {
+    		Play.configuration.remove("shib.diagnostics.allow");
+    		Play.configuration.remove("shib.metrics");
+    		restartPlugin();
+    	}
+    }
+
+    /**
+     * Test the shibboleth.attribute and shibboleth.values tags, logged out
+     * and logged in.
+     */
+    @Test
+    public void testAttributeTags() {
+    	final String INDEX_URL = Router.reverse("Application.index").url;
+    	GET(Router.reverse("shib.Shibboleth.logout").url);
+    	Response response = GET(INDEX_URL);
+    	assertIsOk(response);
+    	assertContentMatch("<p id=\"shib-attribute\">Nobody</p>", response);
+    	assertContentMatch("<li>No values</li>", response);
+    	
+    	MockShibboleth.removeAll();
+    	MockShibboleth.set("SHIB_email", "bob&co@gmail.com");
+    	MockShibboleth.set("SHIB_givenName", "Bob");
+    	MockShibboleth.set("SHIB_sn", "Smith;Jones");
+    	response = GET(Router.reverse("shib.Shibboleth.login").url, true);
+    	assertIsOk(response);
+    	assertContentMatch("<p id=\"shib-attribute\">bob&amp;co@gmail.com</p>", response);
+    	assertContentMatch("<li>1\\. Smith</li>[\\s]*<li>2\\. Jones</li>", response);
+    	assertFalse(getContent(response).contains("No values"));
+    }
+
+    /**
+     * Restart the module, as if the application had started again with the
+     * current configuration.
+     */
+    private static void restartPlugin() {
+    	Play.plugin(ShibbolethPlugin.class).onApplicationStart();
+    }
+
+    /**
+     * @return The file's contents.
+     */
+    private static String read(File file) throws Exception {
+    	StringBuilder contents = new StringBuilder();
+    	BufferedReader in = new BufferedReader(new FileReader(file));
+    	try {
+    		String line;
+    		while ((line = in.readLine()) != null)
+    			contents.append(line).append('\n');
+    	} finally {
+    		in.close();
+    	}
+    	return contents.toString();
+    }
+
     @AfterClass
     public static void cleanup() {
     	MockShibboleth.reload();
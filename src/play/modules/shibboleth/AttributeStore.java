@@ -0,0 +1,39 @@
+package play.modules.shibboleth;
+
+import java.util.Map;
+
+/**
+ * Server side storage for the attributes of authenticated users. When a store
+ * is configured the session cookie only carries an opaque handle to the
+ * user's attributes instead of the attributes themselves.
+ *
+ * Implementations must be thread safe.
+ */
+public interface AttributeStore {
+
+	/**
+	 * Store a user's attributes.
+	 *
+	 * @param attributes
+	 *            The attributes extracted for the user.
+	 * @return An opaque handle for retrieving the attributes, safe to store
+	 *         in a cookie.
+	 */
+	String put(Map<String, String> attributes);
+
+	/**
+	 * @param handle
+	 *            A handle previously returned by put().
+	 * @return The user's attributes, or null if they have expired or been
+	 *         evicted.
+	 */
+	Map<String, String> get(String handle);
+
+	/**
+	 * Forget a user's attributes, i.e. on logout.
+	 *
+	 * @param handle
+	 *            A handle previously returned by put().
+	 */
+	void remove(String handle);
+}
@@ -0,0 +1,241 @@
+package play.modules.shibboleth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import play.exceptions.ConfigurationException;
+
+/**
+ * Transforms an attribute's values as the user logs in, compiled from the
+ * configuration when the configuration snapshot is built:
+ *
+ * <pre>
+ * shib.attribute.email.transform = trim, lowercase
+ * shib.attribute.eppn.transform = stripScope
+ * shib.attribute.groups.transform = extract("^cn=([^,]+)"), filter("admins|staff")
+ * </pre>
+ *
+ * The steps are applied in order to each of the attribute's values:
+ *
+ * <ul>
+ * <li><code>lowercase</code> - lower case the value.</li>
+ * <li><code>trim</code> - remove leading and trailing white space.</li>
+ * <li><code>stripScope</code> - remove the scope, i.e. everything from the
+ * last @.</li>
+ * <li><code>extract("regex")</code> - replace the value with the first group
+ * matched by the regex, or the whole match if it has no groups. Values the
+ * regex is not found in are dropped.</li>
+ * <li><code>filter("regex")</code> - drop values the regex does not match
+ * entirely.</li>
+ * </ul>
+ *
+ * Regexes are double quoted, with <code>\"</code> standing for a quote and
+ * <code>\\</code> for a backslash. The configuration is read as a properties
+ * file first, which drops a lone backslash, so each backslash is doubled again
+ * there: <code>extract("(\\d+)")</code> in application.conf is the regex
+ * <code>(\d+)</code>.
+ */
+public abstract class AttributeTransform {
+
+	/** Configuration suffix for an attribute's transform */
+	public static final String TRANSFORM_SUFFIX = ".transform";
+
+	/**
+	 * @param value
+	 *            One of the attribute's values.
+	 * @return The transformed value, or null to drop the value.
+	 */
+	public abstract String apply(String value);
+
+	/**
+	 * Compile an attribute's transform.
+	 *
+	 * @param attribute
+	 *            The attribute's name, for error messages.
+	 * @param spec
+	 *            The transform's steps, may be null.
+	 * @return The transform, or null if there are no steps.
+	 * @throws ConfigurationException
+	 *             if the steps can not be parsed.
+	 */
+	public static AttributeTransform compile(String attribute, String spec) {
+		if (spec == null || spec.trim().length() == 0)
+			return null;
+		List<AttributeTransform> steps = new Parser(attribute, spec).parse();
+		return steps.size() == 1 ? steps.get(0) : new Pipeline(steps);
+	}
+
+	/**
+	 * Several steps applied in turn.
+	 */
+	private static final class Pipeline extends AttributeTransform {
+		private final AttributeTransform[] steps;
+
+		Pipeline(List<AttributeTransform> steps) {
+			this.steps = steps.toArray(new AttributeTransform[steps.size()]);
+		}
+
+		@Override
+		public String apply(String value) {
+			for (int i = 0; i < steps.length && value != null; i++)
+				value = steps[i].apply(value);
+			return value;
+		}
+	}
+
+	private static final class Lowercase extends AttributeTransform {
+		@Override
+		public String apply(String value) {
+			return value.toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	private static final class Trim extends AttributeTransform {
+		@Override
+		public String apply(String value) {
+			return value.trim();
+		}
+	}
+
+	private static final class StripScope extends AttributeTransform {
+		@Override
+		public String apply(String value) {
+			int at = value.lastIndexOf('@');
+			return at < 0 ? value : value.substring(0, at);
+		}
+	}
+
+	private static final class Extract extends AttributeTransform {
+		private final Pattern pattern;
+
+		Extract(Pattern pattern) {
+			this.pattern = pattern;
+		}
+
+		@Override
+		public String apply(String value) {
+			Matcher matcher = pattern.matcher(value);
+			if (!matcher.find())
+				return null;
+			return matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+		}
+	}
+
+	private static final class Filter extends AttributeTransform {
+		private final Pattern pattern;
+
+		Filter(Pattern pattern) {
+			this.pattern = pattern;
+		}
+
+		@Override
+		public String apply(String value) {
+			return pattern.matcher(value).matches() ? value : null;
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of steps.
+	 */
+	private static final class Parser {
+		private final String attribute;
+		private final String spec;
+		private int position = 0;
+
+		Parser(String attribute, String spec) {
+			this.attribute = attribute;
+			this.spec = spec;
+		}
+
+		List<AttributeTransform> parse() {
+			List<AttributeTransform> steps = new ArrayList<AttributeTransform>();
+			do {
+				steps.add(step());
+				skipSpaces();
+			} while (accept(','));
+			if (position < spec.length())
+				throw error("unexpected '" + spec.charAt(position) + "'");
+			return steps;
+		}
+
+		private AttributeTransform step() {
+			skipSpaces();
+			int start = position;
+			while (position < spec.length()
+					&& Character.isLetter(spec.charAt(position)))
+				position++;
+			String name = spec.substring(start, position);
+
+			if ("lowercase".equals(name))
+				return new Lowercase();
+			if ("trim".equals(name))
+				return new Trim();
+			if ("stripScope".equals(name))
+				return new StripScope();
+			if ("extract".equals(name))
+				return new Extract(pattern());
+			if ("filter".equals(name))
+				return new Filter(pattern());
+			throw error(name.length() == 0 ? "expected a step" : "unknown step '" + name + "'");
+		}
+
+		/**
+		 * Parse a step's ("regex") argument.
+		 */
+		private Pattern pattern() {
+			skipSpaces();
+			if (!accept('('))
+				throw error("expected (");
+			skipSpaces();
+			if (!accept('"'))
+				throw error("expected a double quoted regex");
+
+			StringBuilder regex = new StringBuilder();
+			for (;;) {
+				if (position >= spec.length())
+					throw error("unterminated regex");
+				char c = spec.charAt(position++);
+				if (c == '"')
+					break;
+				if (c == '\\' && position < spec.length()
+						&& (spec.charAt(position) == '"' || spec.charAt(position) == '\\'))
+					c = spec.charAt(position++);
+				regex.append(c);
+			}
+
+			skipSpaces();
+			if (!accept(')'))
+				throw error("expected )");
+			try {
+				return Pattern.compile(regex.toString());
+			} catch (PatternSyntaxException e) {
+				throw error("invalid regex, " + e.getDescription());
+			}
+		}
+
+		private boolean accept(char c) {
+			if (position < spec.length() && spec.charAt(position) == c) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void skipSpaces() {
+			while (position < spec.length()
+					&& Character.isWhitespace(spec.charAt(position)))
+				position++;
+		}
+
+		private ConfigurationException error(String message) {
+			return new ConfigurationException("Unable to parse "
+					+ ShibbolethConfig.ATTRIBUTE_PREFIX + attribute
+					+ TRANSFORM_SUFFIX + " at position " + position + ": "
+					+ message);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package play.modules.shibboleth;
+
+/**
+ * A single entry in the Shibboleth authentication audit trail. Events are
+ * created on the request thread and published to the AuditLog, which formats
+ * and writes them from its own background thread.
+ */
+public final class AuditEvent {
+
+	/** The kinds of events recorded in the audit trail */
+	public enum Type {
+		/** A user successfully authenticated */
+		LOGIN,
+		/** Authentication failed because a required attribute was missing */
+		ATTRIBUTE_FAILURE,
+		/** A user failed the check for a profile */
+		CHECK_FAILURE,
+		/** A user logged out */
+		LOGOUT
+	}
+
+	/** What happened */
+	public final Type type;
+
+	/** When it happened, in milliseconds since the epoch */
+	public final long time;
+
+	/** Who it happened to, may be null if unknown */
+	public final String principal;
+
+	/** The client's address, may be null */
+	public final String address;
+
+	/** The failed profile or missing attribute, may be null */
+	public final String detail;
+
+	public AuditEvent(Type type, String principal, String address,
+			String detail) {
+		this.type = type;
+		this.time = System.currentTimeMillis();
+		this.principal = principal;
+		this.address = address;
+		this.detail = detail;
+	}
+
+	public static AuditEvent login(String principal, String address) {
+		return new AuditEvent(Type.LOGIN, principal, address, null);
+	}
+
+	public static AuditEvent attributeFailure(String principal,
+			String address, String attribute) {
+		return new AuditEvent(Type.ATTRIBUTE_FAILURE, principal, address,
+				attribute);
+	}
+
+	public static AuditEvent checkFailure(String principal, String address,
+			String profile) {
+		return new AuditEvent(Type.CHECK_FAILURE, principal, address, profile);
+	}
+
+	public static AuditEvent logout(String principal, String address) {
+		return new AuditEvent(Type.LOGOUT, principal, address, null);
+	}
+}
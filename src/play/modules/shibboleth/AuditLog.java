@@ -0,0 +1,309 @@
+package play.modules.shibboleth;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import play.Logger;
+import play.Play;
+
+/**
+ * The Shibboleth authentication audit trail. Request threads publish events
+ * into a fixed size, lock free ring buffer and never wait on the audit file;
+ * if the buffer is full the event is dropped and counted. A background thread
+ * drains the buffer in batches and appends the events, one JSON object per
+ * line, to a local file which is rotated when it grows too large.
+ *
+ * The audit trail is enabled with <code>shib.audit = true</code>, see the
+ * module documentation for the other settings.
+ */
+public final class AuditLog {
+
+	/** The running audit log, or null if auditing is disabled */
+	private static volatile AuditLog current = null;
+
+	/** The most events written to the file in one batch */
+	private static final int BATCH = 512;
+
+	/** How long the writer waits when the buffer is empty */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final AtomicReferenceArray<AuditEvent> ring;
+	private final int mask;
+
+	/** The next sequence number to be claimed by a publisher */
+	private final AtomicLong head = new AtomicLong();
+
+	/** The next sequence number to be written, only advanced by the writer */
+	private volatile long tail = 0;
+
+	/** Events dropped because the buffer was full */
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final File file;
+	private final long maxSize;
+	private final int maxFiles;
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	private AuditLog(File file, int capacity, long maxSize, int maxFiles) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.ring = new AtomicReferenceArray<AuditEvent>(size);
+		this.mask = size - 1;
+		this.file = file;
+		this.maxSize = maxSize;
+		this.maxFiles = maxFiles;
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "shibboleth-audit");
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Publish an event to the audit trail, if it is enabled. This never
+	 * blocks.
+	 *
+	 * @param event
+	 *            The event to record.
+	 */
+	public static void publish(AuditEvent event) {
+		AuditLog log = current;
+		if (log != null)
+			log.offer(event);
+	}
+
+	/**
+	 * @return True if the audit trail is enabled, so callers can avoid
+	 *         building events that would be discarded.
+	 */
+	public static boolean isEnabled() {
+		return current != null;
+	}
+
+	/**
+	 * @return The number of events dropped because the buffer was full.
+	 */
+	public static long dropped() {
+		AuditLog log = current;
+		return log == null ? 0 : log.dropped.get();
+	}
+
+	/**
+	 * Start (or restart) the audit trail from the configuration.
+	 */
+	static void start(Properties configuration) {
+		stop();
+		if (!Boolean.parseBoolean(configuration.getProperty("shib.audit",
+				"false")))
+			return;
+
+		File file = new File(configuration.getProperty("shib.audit.file",
+				"logs/shibboleth-audit.log"));
+		if (!file.isAbsolute() && Play.applicationPath != null)
+			file = new File(Play.applicationPath, file.getPath());
+
+		int capacity = Integer.parseInt(configuration.getProperty(
+				"shib.audit.buffer", "8192"));
+		long maxSize = Long.parseLong(configuration.getProperty(
+				"shib.audit.maxSize", "10485760"));
+		int maxFiles = Integer.parseInt(configuration.getProperty(
+				"shib.audit.files", "5"));
+
+		AuditLog log = new AuditLog(file, capacity, maxSize, maxFiles);
+		log.writer.start();
+		current = log;
+		Logger.info("Shib: Writing audit trail to " + file);
+	}
+
+	/**
+	 * Stop the audit trail, writing out any events still in the buffer.
+	 */
+	static void stop() {
+		AuditLog log = current;
+		current = null;
+		if (log != null) {
+			log.running = false;
+			LockSupport.unpark(log.writer);
+			try {
+				log.writer.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Claim the next slot in the ring and store the event in it.
+	 */
+	private boolean offer(AuditEvent event) {
+		while (true) {
+			long sequence = head.get();
+			if (sequence - tail > mask) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (head.compareAndSet(sequence, sequence + 1)) {
+				ring.lazySet((int) sequence & mask, event);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * The writer thread's loop, drains the ring until stopped.
+	 */
+	private void write() {
+		AuditEvent[] batch = new AuditEvent[BATCH];
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		StringBuilder line = new StringBuilder(256);
+		Writer out = null;
+		long size = 0;
+
+		try {
+			while (true) {
+				int count = drain(batch);
+				if (count == 0) {
+					if (!running)
+						break;
+					LockSupport.parkNanos(IDLE_NANOS);
+					continue;
+				}
+
+				try {
+					if (out == null || size >= maxSize) {
+						close(out);
+						if (out != null || file.length() >= maxSize)
+							rotate();
+						file.getAbsoluteFile().getParentFile().mkdirs();
+						out = new BufferedWriter(new OutputStreamWriter(
+								new FileOutputStream(file, true), "UTF-8"));
+						size = file.length();
+					}
+
+					for (int i = 0; i < count; i++) {
+						line.setLength(0);
+						format(batch[i], format, line);
+						out.write(line.toString());
+						size += line.length();
+						batch[i] = null;
+					}
+					out.flush();
+				} catch (IOException e) {
+					Logger.error(e, "Shib: Unable to write audit trail to "
+							+ file + ", " + count + " events lost.");
+					close(out);
+					out = null;
+				}
+			}
+		} finally {
+			close(out);
+		}
+	}
+
+	/**
+	 * Move up to batch.length published events out of the ring.
+	 *
+	 * @return The number of events moved.
+	 */
+	private int drain(AuditEvent[] batch) {
+		int count = 0;
+		long sequence = tail;
+		while (count < batch.length) {
+			int index = (int) sequence & mask;
+			AuditEvent event = ring.get(index);
+			if (event == null)
+				break;
+			ring.lazySet(index, null);
+			batch[count++] = event;
+			sequence++;
+		}
+		tail = sequence;
+		return count;
+	}
+
+	/**
+	 * Rename file.N-1 to file.N, ..., file to file.1, dropping the oldest.
+	 */
+	private void rotate() {
+		new File(file.getPath() + "." + maxFiles).delete();
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			File older = new File(file.getPath() + "." + i);
+			if (older.exists())
+				older.renameTo(new File(file.getPath() + "." + (i + 1)));
+		}
+		if (maxFiles > 0)
+			file.renameTo(new File(file.getPath() + ".1"));
+		else
+			file.delete();
+	}
+
+	private static void close(Writer out) {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// Nothing more can be done.
+			}
+		}
+	}
+
+	/**
+	 * Format an event as a single line JSON object.
+	 */
+	private static void format(AuditEvent event, SimpleDateFormat format,
+			StringBuilder line) {
+		line.append("{\"time\":\"").append(format.format(new Date(event.time)));
+		line.append("\",\"type\":\"").append(event.type.name()).append('"');
+		field(line, "principal", event.principal);
+		field(line, "address", event.address);
+		field(line, "detail", event.detail);
+		line.append("}\n");
+	}
+
+	private static void field(StringBuilder line, String name, String value) {
+		if (value == null)
+			return;
+		line.append(",\"").append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				line.append("\\\"");
+				break;
+			case '\\':
+				line.append("\\\\");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			case '\t':
+				line.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					line.append(String.format("\\u%04x", (int) c));
+				else
+					line.append(c);
+			}
+		}
+		line.append('"');
+	}
+}
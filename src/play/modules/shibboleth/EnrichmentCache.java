@@ -0,0 +1,145 @@
+package play.modules.shibboleth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import play.Play;
+import play.libs.Time;
+
+/**
+ * Caches data looked up for a user, such as a local database record loaded
+ * when they log in, keyed by their principal (see shib.principal). The cache
+ * holds at most a fixed number of users, evicting the least recently used,
+ * and forgets each value a fixed time after it was loaded.
+ *
+ * Concurrent loads of the same key are collapsed into one: the first caller
+ * runs the loader and everyone else asking for that key meanwhile waits for
+ * its result, so a user logging in from several tabs at once costs a single
+ * backend query. A failed load is not cached.
+ *
+ * @param <V>
+ *            The type of the cached values.
+ */
+public final class EnrichmentCache<V> {
+
+	private final long ttl;
+	private final Map<String, Loaded<V>> entries;
+
+	/**
+	 * @param size
+	 *            The most users to keep.
+	 * @param ttl
+	 *            How long to keep a value, in milliseconds.
+	 */
+	public EnrichmentCache(final int size, long ttl) {
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Loaded<V>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Loaded<V>> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Create a cache configured by <code>shib.cache.&lt;name&gt;.size</code>
+	 * (10000 by default) and <code>shib.cache.&lt;name&gt;.ttl</code> (10min
+	 * by default).
+	 */
+	public static <V> EnrichmentCache<V> create(String name) {
+		String prefix = "shib.cache." + name;
+		int size = Integer.parseInt(Play.configuration.getProperty(prefix
+				+ ".size", "10000"));
+		long ttl = Time.parseDuration(Play.configuration.getProperty(prefix
+				+ ".ttl", "10min")) * 1000L;
+		return new EnrichmentCache<V>(size, ttl);
+	}
+
+	/**
+	 * Get the key's value, loading it if it is not cached or has expired.
+	 *
+	 * @param key
+	 *            The user's principal.
+	 * @param loader
+	 *            Loads the value, called at most once at a time for each key.
+	 * @return The value, which may be null.
+	 * @throws Exception
+	 *             Anything thrown by the loader.
+	 */
+	public V get(String key, Callable<V> loader) throws Exception {
+		Loaded<V> entry;
+		boolean load = false;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry == null || entry.expires < System.currentTimeMillis()) {
+				entry = new Loaded<V>(new FutureTask<V>(loader));
+				entries.put(key, entry);
+				load = true;
+			}
+		}
+
+		if (load) {
+			entry.task.run();
+			synchronized (entries) {
+				entry.expires = System.currentTimeMillis() + ttl;
+			}
+		}
+
+		try {
+			return entry.task.get();
+		} catch (ExecutionException e) {
+			synchronized (entries) {
+				if (entries.get(key) == entry)
+					entries.remove(key);
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw (Error) cause;
+		}
+	}
+
+	/**
+	 * Forget the key's value, i.e. because it has changed.
+	 */
+	public void invalidate(String key) {
+		synchronized (entries) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Forget every value.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return The number of values cached, or being loaded.
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * A value, loaded or being loaded.
+	 */
+	private static final class Loaded<V> {
+		final FutureTask<V> task;
+
+		/** When the value expires, never while it is being loaded */
+		long expires = Long.MAX_VALUE;
+
+		Loaded(FutureTask<V> task) {
+			this.task = task;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package play.modules.shibboleth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import play.Logger;
+
+/**
+ * Keeps users' attributes in files, one per user, so they survive an
+ * application restart. Recently used attributes are also kept in memory so
+ * most requests do not touch the disk. A user's file is removed a fixed time
+ * after they logged in.
+ */
+public class FileAttributeStore implements AttributeStore {
+
+	/** How often expired files are swept from the directory */
+	private static final long SWEEP_INTERVAL = 10 * 60 * 1000;
+
+	private final File directory;
+	private final long ttl;
+	private final MemoryAttributeStore cache;
+	private volatile long lastSweep = 0;
+
+	/**
+	 * @param directory
+	 *            Where to keep the files.
+	 * @param size
+	 *            The most users to keep in memory.
+	 * @param ttl
+	 *            How long to keep a user's attributes, in milliseconds.
+	 */
+	public FileAttributeStore(File directory, int size, long ttl) {
+		this.directory = directory;
+		this.ttl = ttl;
+		this.cache = new MemoryAttributeStore(size, ttl);
+		directory.mkdirs();
+	}
+
+	public String put(Map<String, String> attributes) {
+		String handle = MemoryAttributeStore.newHandle();
+		long expires = System.currentTimeMillis() + ttl;
+
+		Properties properties = new Properties();
+		properties.putAll(attributes);
+		File temp = new File(directory, handle + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				properties.store(out, null);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file(handle)))
+				throw new IOException("Unable to rename " + temp);
+		} catch (IOException e) {
+			// The attributes are still usable until this node forgets them.
+			Logger.error(e, "Shib: Unable to store attributes in " + directory);
+			temp.delete();
+		}
+
+		cache.put(handle, attributes, expires);
+		sweep();
+		return handle;
+	}
+
+	public Map<String, String> get(String handle) {
+		Map<String, String> attributes = cache.get(handle);
+		if (attributes != null || !isValid(handle))
+			return attributes;
+
+		File file = file(handle);
+		long expires = file.lastModified() + ttl;
+		if (expires < System.currentTimeMillis()) {
+			file.delete();
+			return null;
+		}
+
+		Properties properties = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+
+		attributes = new HashMap<String, String>();
+		for (String name : properties.stringPropertyNames())
+			attributes.put(name, properties.getProperty(name));
+		cache.put(handle, attributes, expires);
+		return cache.get(handle);
+	}
+
+	public void remove(String handle) {
+		cache.remove(handle);
+		if (isValid(handle))
+			file(handle).delete();
+	}
+
+	private File file(String handle) {
+		return new File(directory, handle + ".properties");
+	}
+
+	/**
+	 * @return True if the handle could have been issued by this store, so it
+	 *         is safe to use as a file name.
+	 */
+	private static boolean isValid(String handle) {
+		if (handle == null || handle.length() != 32)
+			return false;
+		for (int i = 0; i < handle.length(); i++) {
+			if (Character.digit(handle.charAt(i), 16) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove expired files, at most once every SWEEP_INTERVAL.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		if (now - lastSweep < SWEEP_INTERVAL)
+			return;
+		lastSweep = now;
+
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.lastModified() + ttl < now)
+				file.delete();
+		}
+	}
+}
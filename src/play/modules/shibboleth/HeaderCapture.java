@@ -0,0 +1,193 @@
+package play.modules.shibboleth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import play.mvc.Http.Header;
+
+/**
+ * Keeps the headers of recent logins for diagnosing Shibboleth SP problems,
+ * instead of logging every header of every login. One in
+ * <code>shib.capture</code> logins is sampled, along with every login missing
+ * a required attribute, and the captures are kept in a fixed size ring so the
+ * oldest are overwritten. The values of sensitive headers, such as cookies,
+ * are redacted as they are captured. Nothing is captured unless
+ * <code>shib.capture</code> is set.
+ *
+ * Deciding not to sample a login is a counter increment, the headers are
+ * only copied for the logins that are captured.
+ */
+public final class HeaderCapture {
+
+	/** The current capture ring, null until started */
+	private static volatile HeaderCapture current = null;
+
+	/** Replaces the values of redacted headers */
+	public static final String REDACTED = "[redacted]";
+
+	/** Headers redacted unless shib.capture.redact says otherwise */
+	private static final String DEFAULT_REDACT = "cookie, authorization, proxy-authorization, shib-session-id";
+
+	private final int every;
+	private final Set<String> redact;
+	private final AtomicReferenceArray<Capture> ring;
+
+	/** Logins seen, for sampling */
+	private final AtomicLong seen = new AtomicLong();
+
+	/** Captures made, the next one's sequence number */
+	private final AtomicLong captured = new AtomicLong();
+
+	/**
+	 * A login's headers.
+	 */
+	public static final class Capture {
+
+		/** When the headers were captured, in milliseconds since the epoch */
+		public final long time;
+
+		/** The client's address */
+		public final String remoteAddress;
+
+		/** Why the headers were captured, i.e. sampled or a missing attribute */
+		public final String reason;
+
+		/** The header names, sorted, parallel to values */
+		public final String[] names;
+
+		/** Each header's values, redacted where configured */
+		public final List<String>[] values;
+
+		final long sequence;
+
+		Capture(long sequence, long time, String remoteAddress, String reason,
+				String[] names, List<String>[] values) {
+			this.sequence = sequence;
+			this.time = time;
+			this.remoteAddress = remoteAddress;
+			this.reason = reason;
+			this.names = names;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * @param size
+	 *            The most captures to keep.
+	 * @param every
+	 *            Sample one in this many logins, 0 to only capture failures.
+	 * @param redact
+	 *            The names of the headers whose values are redacted, in any
+	 *            case.
+	 */
+	public HeaderCapture(int size, int every, Set<String> redact) {
+		this.ring = new AtomicReferenceArray<Capture>(size);
+		this.every = every;
+		this.redact = new HashSet<String>();
+		for (String name : redact)
+			this.redact.add(name.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Count a login, deciding whether to sample it.
+	 *
+	 * @return True if the login's headers should be captured.
+	 */
+	public boolean sample() {
+		return every > 0 && seen.incrementAndGet() % every == 0;
+	}
+
+	/**
+	 * Copy the headers into the ring, redacting as configured.
+	 *
+	 * @param reason
+	 *            Why the headers are being captured.
+	 * @param remoteAddress
+	 *            The client's address.
+	 * @param headers
+	 *            The request's headers.
+	 */
+	@SuppressWarnings("unchecked")
+	public void capture(String reason, String remoteAddress,
+			Map<String, Header> headers) {
+		List<String> sorted = new ArrayList<String>(headers.keySet());
+		Collections.sort(sorted);
+		String[] names = sorted.toArray(new String[sorted.size()]);
+		List<String>[] values = new List[names.length];
+		for (int i = 0; i < names.length; i++) {
+			List<String> original = headers.get(names[i]).values;
+			if (redact.contains(names[i].toLowerCase(Locale.ENGLISH)))
+				values[i] = Collections.nCopies(original.size(), REDACTED);
+			else
+				values[i] = Collections.unmodifiableList(new ArrayList<String>(original));
+		}
+
+		long sequence = captured.getAndIncrement();
+		ring.set((int) (sequence % ring.length()), new Capture(sequence,
+				System.currentTimeMillis(), remoteAddress, reason, names, values));
+	}
+
+	/**
+	 * @return The captures kept, newest first.
+	 */
+	public List<Capture> captures() {
+		List<Capture> captures = new ArrayList<Capture>(ring.length());
+		for (int i = 0; i < ring.length(); i++) {
+			Capture capture = ring.get(i);
+			if (capture != null)
+				captures.add(capture);
+		}
+		// Insertion sort by sequence, the ring is small.
+		for (int i = 1; i < captures.size(); i++) {
+			Capture capture = captures.get(i);
+			int j = i;
+			for (; j > 0 && captures.get(j - 1).sequence < capture.sequence; j--)
+				captures.set(j, captures.get(j - 1));
+			captures.set(j, capture);
+		}
+		return captures;
+	}
+
+	/**
+	 * @return The current capture ring, or null if the plugin has not started.
+	 */
+	public static HeaderCapture current() {
+		return current;
+	}
+
+	/**
+	 * Create the capture ring from the configuration, keeping the captures
+	 * made so far if the settings have not changed.
+	 */
+	static synchronized void start(Properties configuration) {
+		String sample = configuration.getProperty("shib.capture");
+		if (sample == null) {
+			current = null;
+			return;
+		}
+		int every = Integer.parseInt(sample.trim());
+		int size = Integer.parseInt(configuration.getProperty(
+				"shib.capture.size", "50"));
+		Set<String> redact = new HashSet<String>();
+		for (String name : configuration.getProperty("shib.capture.redact",
+				DEFAULT_REDACT).split(",")) {
+			name = name.trim().toLowerCase(Locale.ENGLISH);
+			if (name.length() > 0)
+				redact.add(name);
+		}
+
+		HeaderCapture existing = current;
+		if (existing != null && existing.ring.length() == size
+				&& existing.every == every && existing.redact.equals(redact))
+			return;
+		current = size > 0 ? new HeaderCapture(size, every, redact) : null;
+	}
+}
@@ -0,0 +1,200 @@
+package play.modules.shibboleth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import play.db.DB;
+
+/**
+ * Writes user records to a database table, one row per principal:
+ *
+ * <pre>
+ * principal VARCHAR(255) PRIMARY KEY, attributes CLOB, last_login TIMESTAMP
+ * </pre>
+ *
+ * The attributes are stored as <code>name=value</code> lines, sorted by name.
+ * Each batch is written in a single transaction, updating existing rows and
+ * inserting the rest. Only the login time of records with unchanged
+ * attributes is updated.
+ */
+public class JdbcUserRecordSink implements UserRecordSink {
+
+	/** The data source, or null to use the application's */
+	private final DataSource dataSource;
+	private final String table;
+	private final boolean create;
+	private volatile boolean created = false;
+
+	/**
+	 * Write to the application's database, configured by the db.* settings.
+	 *
+	 * @param table
+	 *            The table's name.
+	 * @param create
+	 *            Create the table if it does not exist?
+	 */
+	public JdbcUserRecordSink(String table, boolean create) {
+		this(null, table, create);
+	}
+
+	/**
+	 * @param dataSource
+	 *            The database to write to.
+	 * @param table
+	 *            The table's name.
+	 * @param create
+	 *            Create the table if it does not exist?
+	 */
+	public JdbcUserRecordSink(DataSource dataSource, String table,
+			boolean create) {
+		this.dataSource = dataSource;
+		this.table = table;
+		this.create = create;
+	}
+
+	public void write(List<UserRecord> records) throws SQLException {
+		Connection connection = (dataSource != null ? dataSource : DB.datasource)
+				.getConnection();
+		try {
+			if (create && !created) {
+				Statement statement = connection.createStatement();
+				try {
+					statement.execute("CREATE TABLE IF NOT EXISTS " + table
+							+ " (principal VARCHAR(255) PRIMARY KEY,"
+							+ " attributes CLOB, last_login TIMESTAMP)");
+				} finally {
+					statement.close();
+				}
+				created = true;
+			}
+
+			List<UserRecord> changed = new ArrayList<UserRecord>(records.size());
+			List<UserRecord> unchanged = new ArrayList<UserRecord>();
+			for (UserRecord record : records) {
+				if (record.changed)
+					changed.add(record);
+				else
+					unchanged.add(record);
+			}
+
+			connection.setAutoCommit(false);
+			PreparedStatement update = connection.prepareStatement("UPDATE "
+					+ table + " SET attributes = ?, last_login = ? WHERE principal = ?");
+			PreparedStatement touch = connection.prepareStatement("UPDATE "
+					+ table + " SET last_login = ? WHERE principal = ?");
+			PreparedStatement exists = connection.prepareStatement("SELECT 1 FROM "
+					+ table + " WHERE principal = ?");
+			PreparedStatement insert = connection.prepareStatement("INSERT INTO "
+					+ table + " (attributes, last_login, principal) VALUES (?, ?, ?)");
+			try {
+				List<UserRecord> missing = new ArrayList<UserRecord>();
+				if (!changed.isEmpty()) {
+					for (UserRecord record : changed)
+						bind(update, record);
+					missing(update.executeBatch(), changed, exists, missing);
+				}
+				if (!unchanged.isEmpty()) {
+					for (UserRecord record : unchanged) {
+						touch.setTimestamp(1, new Timestamp(record.login));
+						touch.setString(2, record.principal);
+						touch.addBatch();
+					}
+					missing(touch.executeBatch(), unchanged, exists, missing);
+				}
+
+				if (!missing.isEmpty()) {
+					for (UserRecord record : missing)
+						bind(insert, record);
+					insert.executeBatch();
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				update.close();
+				touch.close();
+				exists.close();
+				insert.close();
+				connection.setAutoCommit(true);
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Find the records an update batch found no row for. Drivers may report
+	 * a statement's update count as unknown (SUCCESS_NO_INFO), in which case
+	 * the row is looked for.
+	 *
+	 * @param updated
+	 *            The update counts, parallel to records.
+	 * @param missing
+	 *            The records without a row are added to this list.
+	 */
+	private static void missing(int[] updated, List<UserRecord> records,
+			PreparedStatement exists, List<UserRecord> missing)
+			throws SQLException {
+		for (int i = 0; i < records.size(); i++) {
+			if (updated[i] > 0)
+				continue;
+			if (updated[i] < 0) {
+				exists.setString(1, records.get(i).principal);
+				ResultSet row = exists.executeQuery();
+				try {
+					if (row.next())
+						continue;
+				} finally {
+					row.close();
+				}
+			}
+			missing.add(records.get(i));
+		}
+	}
+
+	private static void bind(PreparedStatement statement, UserRecord record)
+			throws SQLException {
+		statement.setString(1, format(record.attributes));
+		statement.setTimestamp(2, new Timestamp(record.login));
+		statement.setString(3, record.principal);
+		statement.addBatch();
+	}
+
+	/**
+	 * @return The attributes as name=value lines, sorted by name, with
+	 *         backslashes and line breaks escaped.
+	 */
+	static String format(Map<String, String> attributes) {
+		List<String> names = new ArrayList<String>(attributes.keySet());
+		Collections.sort(names);
+		StringBuilder formatted = new StringBuilder();
+		for (String name : names) {
+			formatted.append(name).append('=');
+			String value = attributes.get(name);
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\')
+					formatted.append("\\\\");
+				else if (c == '\n')
+					formatted.append("\\n");
+				else if (c == '\r')
+					formatted.append("\\r");
+				else
+					formatted.append(c);
+			}
+			formatted.append('\n');
+		}
+		return formatted.toString();
+	}
+}
@@ -0,0 +1,156 @@
+package play.modules.shibboleth;
+
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+
+/**
+ * Limits how often each client may start a login, so that a broken browser
+ * or service provider stuck in a login loop can not flood the application.
+ * Each client has a token bucket, holding up to a burst of logins and
+ * refilled at a steady rate.
+ *
+ * The bucket is kept as a single timestamp, the time at which it will next
+ * be full (the generic cell rate algorithm), updated with compare and set,
+ * so taking a token never locks.
+ *
+ * At most a fixed number of clients are tracked. Clients whose buckets are
+ * full again are forgotten, and while every tracked client is still being
+ * throttled new clients are refused, so a flood of addresses can not grow
+ * the table without bound.
+ *
+ * Enabled with <code>shib.throttle</code>, the logins per minute allowed for
+ * each client.
+ */
+public final class LoginThrottle {
+
+	/** The running throttle, or null if disabled */
+	private static volatile LoginThrottle current = null;
+
+	/** Nanoseconds between tokens */
+	private final long interval;
+
+	/** How far ahead of now a bucket may run, in nanoseconds */
+	private final long tolerance;
+
+	/** The most clients to track */
+	private final int maxClients;
+
+	/** When each client's bucket will be full, in System.nanoTime() */
+	private final ConcurrentMap<String, AtomicLong> clients = new ConcurrentHashMap<String, AtomicLong>();
+
+	/** When idle clients may next be forgotten, in System.nanoTime() */
+	private final AtomicLong nextPrune = new AtomicLong(System.nanoTime());
+
+	/**
+	 * @param perMinute
+	 *            The steady number of logins allowed per minute.
+	 * @param burst
+	 *            The most logins allowed at once.
+	 * @param maxClients
+	 *            The most clients to track, beyond that idle clients are
+	 *            forgotten, or if there are none new clients are refused.
+	 */
+	public LoginThrottle(int perMinute, int burst, int maxClients) {
+		this.interval = TimeUnit.MINUTES.toNanos(1) / perMinute;
+		this.tolerance = interval * (Math.max(burst, 1) - 1);
+		this.maxClients = maxClients;
+	}
+
+	/**
+	 * Take a token from the client's bucket.
+	 *
+	 * @param client
+	 *            The client's address.
+	 * @return False if the bucket is empty, or the client is new and too many
+	 *         clients are being throttled, and the login should be refused.
+	 */
+	public boolean tryAcquire(String client) {
+		long now = System.nanoTime();
+		AtomicLong full = clients.get(client);
+		if (full == null) {
+			if (clients.size() >= maxClients) {
+				boolean pruned = prune(now);
+				if (clients.size() >= maxClients) {
+					if (pruned)
+						Logger.warn("Shib: Throttling " + maxClients + " clients, refusing logins from new ones.");
+					return false;
+				}
+			}
+			full = new AtomicLong(now);
+			AtomicLong existing = clients.putIfAbsent(client, full);
+			if (existing != null)
+				full = existing;
+		}
+
+		for (;;) {
+			long previous = full.get();
+			long start = previous - now > 0 ? previous : now;
+			if (start - now > tolerance)
+				return false;
+			if (full.compareAndSet(previous, start + interval))
+				return true;
+		}
+	}
+
+	/**
+	 * @return The number of clients being tracked.
+	 */
+	public int size() {
+		return clients.size();
+	}
+
+	/**
+	 * Forget the clients whose buckets are full again, at most once a second
+	 * however many clients are new.
+	 *
+	 * @return True if this call pruned the clients.
+	 */
+	private boolean prune(long now) {
+		long next = nextPrune.get();
+		if (now - next < 0
+				|| !nextPrune.compareAndSet(next, now + TimeUnit.SECONDS.toNanos(1)))
+			return false;
+		Iterator<AtomicLong> buckets = clients.values().iterator();
+		while (buckets.hasNext()) {
+			if (buckets.next().get() - now <= 0)
+				buckets.remove();
+		}
+		return true;
+	}
+
+	/**
+	 * Take a token for the client from the configured throttle, if there is
+	 * one.
+	 *
+	 * @return False if the login should be refused.
+	 */
+	public static boolean allow(String client) {
+		LoginThrottle throttle = current;
+		return throttle == null || client == null || throttle.tryAcquire(client);
+	}
+
+	/**
+	 * Start (or restart) the throttle from the configuration.
+	 */
+	static void start(Properties configuration) {
+		int perMinute = Integer.parseInt(configuration.getProperty(
+				"shib.throttle", "0"));
+		if (perMinute <= 0) {
+			current = null;
+			return;
+		}
+		int burst = Integer.parseInt(configuration.getProperty(
+				"shib.throttle.burst", "10"));
+		int maxClients = Integer.parseInt(configuration.getProperty(
+				"shib.throttle.clients", "10000"));
+		current = new LoginThrottle(perMinute, burst, maxClients);
+		Logger.info("Shib: Allowing each client " + perMinute
+				+ " logins per minute, " + burst + " at once.");
+	}
+}
@@ -0,0 +1,98 @@
+package play.modules.shibboleth;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps users' attributes in memory. The store holds at most a fixed number
+ * of users, evicting the least recently used when full, and forgets each
+ * user's attributes a fixed time after they logged in.
+ */
+public class MemoryAttributeStore implements AttributeStore {
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final long ttl;
+	private final Map<String, Stored> entries;
+
+	/**
+	 * @param size
+	 *            The most users to keep.
+	 * @param ttl
+	 *            How long to keep a user's attributes, in milliseconds.
+	 */
+	public MemoryAttributeStore(final int size, long ttl) {
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Stored>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Stored> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	public String put(Map<String, String> attributes) {
+		String handle = newHandle();
+		put(handle, attributes, System.currentTimeMillis() + ttl);
+		return handle;
+	}
+
+	public Map<String, String> get(String handle) {
+		Stored entry;
+		synchronized (entries) {
+			entry = entries.get(handle);
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				entries.remove(handle);
+				entry = null;
+			}
+		}
+		return entry == null ? null : entry.attributes;
+	}
+
+	public void remove(String handle) {
+		synchronized (entries) {
+			entries.remove(handle);
+		}
+	}
+
+	/**
+	 * Store attributes under an existing handle.
+	 *
+	 * @param expires
+	 *            When the attributes expire, in milliseconds since the epoch.
+	 */
+	void put(String handle, Map<String, String> attributes, long expires) {
+		Stored entry = new Stored(Collections
+				.unmodifiableMap(new HashMap<String, String>(attributes)),
+				expires);
+		synchronized (entries) {
+			entries.put(handle, entry);
+		}
+	}
+
+	/**
+	 * @return A new random, hex encoded, 128 bit handle.
+	 */
+	static String newHandle() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		String handle = new BigInteger(1, bytes).toString(16);
+		while (handle.length() < 32)
+			handle = "0" + handle;
+		return handle;
+	}
+
+	private static final class Stored {
+		final Map<String, String> attributes;
+		final long expires;
+
+		Stored(Map<String, String> attributes, long expires) {
+			this.attributes = attributes;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package play.modules.shibboleth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the module's authentication and
+ * authorization paths. Recording is lock free, every counter and histogram
+ * bucket is a separate atomic long, and the whole set may be written out in
+ * the Prometheus text format, see Diagnostics.metrics().
+ *
+ * Metrics are enabled with <code>shib.metrics = true</code>, when disabled
+ * recording is a single volatile read.
+ */
+public final class Metrics {
+
+	/** Is recording enabled? */
+	private static volatile boolean enabled = false;
+
+	/** The most distinct label values kept for a metric, the rest share one */
+	private static final int MAX_LABELS = 1000;
+
+	/** Histogram bucket upper bounds, in seconds */
+	private static final double[] BOUNDS = { 0.00001, 0.0001, 0.0005, 0.001,
+			0.005, 0.01, 0.05, 0.1, 0.5, 1, 5 };
+
+	/** The same bounds, in nanoseconds */
+	private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+	static {
+		for (int i = 0; i < BOUNDS.length; i++)
+			BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+	}
+
+	/** Time taken by Shibboleth.checkAccess() */
+	public static final Histogram CHECK_ACCESS = new Histogram(
+			"shibboleth_check_access_seconds",
+			"Time taken to check a request's access.");
+
+	/** Time taken by Shibboleth.authenticate() */
+	public static final Histogram AUTHENTICATE = new Histogram(
+			"shibboleth_authenticate_seconds",
+			"Time taken to authenticate a user from the Shibboleth headers.");
+
+	/** Time taken by Shibboleth.logout() */
+	public static final Histogram LOGOUT = new Histogram(
+			"shibboleth_logout_seconds", "Time taken to log a user out.");
+
+	/** Time taken by Shibboleth.split() */
+	public static final Histogram SPLIT = new Histogram(
+			"shibboleth_split_seconds",
+			"Time taken to split a multivalue attribute.");
+
+	/** Time taken by each Security hook */
+	public static final Histograms HOOKS = new Histograms(
+			"shibboleth_hook_seconds",
+			"Time taken by the application's Security hooks.", "hook");
+
+	/** Profile checks passed and failed */
+	public static final Counters CHECKS = new Counters(
+			"shibboleth_profile_checks_total",
+			"Profile checks, by profile and result.", "profile", "result",
+			new String[] { "pass", "fail" });
+
+	/** Mapped headers missing from authentication requests */
+	public static final Counters MISSING_HEADERS = new Counters(
+			"shibboleth_missing_headers_total",
+			"Mapped Shibboleth headers missing or blank when authenticating, by attribute.",
+			"attribute", null, null);
+
+	/** Authentications refused for a missing required attribute */
+	public static final Counters REQUIRED_FAILURES = new Counters(
+			"shibboleth_required_attribute_failures_total",
+			"Authentications missing a required attribute, by attribute.",
+			"attribute", null, null);
+
+	/** Logins refused by the throttle or loop detection */
+	public static final Counters REFUSED_LOGINS = new Counters(
+			"shibboleth_refused_logins_total",
+			"Logins refused, by reason: throttled or loop.", "reason", null,
+			null);
+
+	private Metrics() {
+	}
+
+	/**
+	 * Enable or disable recording from the configuration.
+	 */
+	static void start(Properties configuration) {
+		enabled = Boolean.parseBoolean(configuration.getProperty(
+				"shib.metrics", "false"));
+	}
+
+	/**
+	 * @return True if metrics are being recorded.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Start timing an operation.
+	 *
+	 * @return The start time to pass to Histogram.record(), or 0 if metrics
+	 *         are disabled.
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() | 1 : 0;
+	}
+
+	/**
+	 * Write all the metrics in the Prometheus text exposition format.
+	 */
+	public static void write(StringBuilder out) {
+		CHECK_ACCESS.write(out);
+		AUTHENTICATE.write(out);
+		LOGOUT.write(out);
+		SPLIT.write(out);
+		HOOKS.write(out);
+		CHECKS.write(out);
+		MISSING_HEADERS.write(out);
+		REQUIRED_FAILURES.write(out);
+		REFUSED_LOGINS.write(out);
+
+		header(out, "shibboleth_audit_dropped_total", "counter",
+				"Audit events dropped because the audit buffer was full.");
+		out.append("shibboleth_audit_dropped_total ").append(AuditLog.dropped())
+				.append('\n');
+	}
+
+	/**
+	 * A histogram of operation times.
+	 */
+	public static final class Histogram {
+		private final String name;
+		private final String help;
+
+		/** Observations in each bucket, the last is above every bound */
+		private final AtomicLongArray buckets = new AtomicLongArray(
+				BOUNDS.length + 1);
+		private final AtomicLong sumNanos = new AtomicLong();
+
+		Histogram(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		/**
+		 * Record the time since start, if it was taken with metrics enabled.
+		 *
+		 * @param start
+		 *            The value returned by Metrics.start()
+		 */
+		public void record(long start) {
+			if (start == 0)
+				return;
+			long nanos = System.nanoTime() - start;
+			int bucket = 0;
+			while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket])
+				bucket++;
+			buckets.incrementAndGet(bucket);
+			sumNanos.addAndGet(nanos);
+		}
+
+		void write(StringBuilder out) {
+			header(out, name, "histogram", help);
+			write(out, null);
+		}
+
+		void write(StringBuilder out, String labels) {
+			long count = 0;
+			for (int i = 0; i <= BOUNDS.length; i++) {
+				count += buckets.get(i);
+				out.append(name).append("_bucket{");
+				if (labels != null)
+					out.append(labels).append(',');
+				out.append("le=\"").append(i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf")
+						.append("\"} ").append(count).append('\n');
+			}
+			sample(out, name + "_sum", labels).append(sumNanos.get() / 1e9).append('\n');
+			sample(out, name + "_count", labels).append(count).append('\n');
+		}
+	}
+
+	/**
+	 * Histograms of operation times, labeled by operation.
+	 */
+	public static final class Histograms {
+		private final String name;
+		private final String help;
+		private final String label;
+		private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+		Histograms(String name, String help, String label) {
+			this.name = name;
+			this.help = help;
+			this.label = label;
+		}
+
+		/**
+		 * Record the time since start against the label value.
+		 */
+		public void record(String value, long start) {
+			if (start == 0)
+				return;
+			Histogram histogram = histograms.get(value);
+			if (histogram == null) {
+				if (histograms.size() >= MAX_LABELS)
+					value = "other";
+				histogram = new Histogram(name, help);
+				Histogram existing = histograms.putIfAbsent(value, histogram);
+				if (existing != null)
+					histogram = existing;
+			}
+			histogram.record(start);
+		}
+
+		void write(StringBuilder out) {
+			header(out, name, "histogram", help);
+			for (String value : sorted(histograms)) {
+				histograms.get(value).write(out, label + "=\"" + escape(value) + "\"");
+			}
+		}
+	}
+
+	/**
+	 * Counters labeled by name, each optionally split by outcome.
+	 */
+	public static final class Counters {
+		private final String name;
+		private final String help;
+		private final String label;
+		private final String outcomeLabel;
+		private final String[] outcomes;
+		private final ConcurrentMap<String, AtomicLongArray> counters = new ConcurrentHashMap<String, AtomicLongArray>();
+
+		Counters(String name, String help, String label, String outcomeLabel,
+				String[] outcomes) {
+			this.name = name;
+			this.help = help;
+			this.label = label;
+			this.outcomeLabel = outcomeLabel;
+			this.outcomes = outcomes == null ? new String[] { null } : outcomes;
+		}
+
+		/**
+		 * Count one occurrence.
+		 */
+		public void increment(String value) {
+			increment(value, 0);
+		}
+
+		/**
+		 * Count one occurrence of the i'th outcome.
+		 */
+		public void increment(String value, int outcome) {
+			if (!enabled)
+				return;
+			if (value == null)
+				value = "";
+			AtomicLongArray counts = counters.get(value);
+			if (counts == null) {
+				if (counters.size() >= MAX_LABELS)
+					value = "other";
+				counts = new AtomicLongArray(outcomes.length);
+				AtomicLongArray existing = counters.putIfAbsent(value, counts);
+				if (existing != null)
+					counts = existing;
+			}
+			counts.incrementAndGet(outcome);
+		}
+
+		void write(StringBuilder out) {
+			header(out, name, "counter", help);
+			for (String value : sorted(counters)) {
+				AtomicLongArray counts = counters.get(value);
+				for (int i = 0; i < outcomes.length; i++) {
+					String labels = label + "=\"" + escape(value) + "\"";
+					if (outcomes[i] != null)
+						labels += "," + outcomeLabel + "=\"" + outcomes[i] + "\"";
+					sample(out, name, labels).append(counts.get(i)).append('\n');
+				}
+			}
+		}
+	}
+
+	private static void header(StringBuilder out, String name, String type,
+			String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static StringBuilder sample(StringBuilder out, String name,
+			String labels) {
+		out.append(name);
+		if (labels != null)
+			out.append('{').append(labels).append('}');
+		return out.append(' ');
+	}
+
+	private static List<String> sorted(Map<String, ?> map) {
+		List<String> keys = new ArrayList<String>(map.keySet());
+		Collections.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * Escape a label value.
+	 */
+	private static String escape(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				escaped.append('\\').append(c);
+			else if (c == '\n')
+				escaped.append("\\n");
+			else
+				escaped.append(c);
+		}
+		return escaped.toString();
+	}
+}
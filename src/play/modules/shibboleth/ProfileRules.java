@@ -0,0 +1,469 @@
+package play.modules.shibboleth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import play.exceptions.ConfigurationException;
+
+/**
+ * Declarative profiles, compiled from the configuration into a tree of rules
+ * when the configuration snapshot is built. A profile is defined by:
+ *
+ * <pre>
+ * shib.profile.isAdmin = entitlement contains urn:x:admin or affiliation in (staff,faculty)
+ * shib.profile.isStaff = affiliation contains staff and not isStudent
+ * shib.profile.isAdmin.implies = isStaff, isUser
+ * </pre>
+ *
+ * Expressions combine attribute tests with <code>and</code>, <code>or</code>,
+ * <code>not</code> and parentheses:
+ *
+ * <ul>
+ * <li><code>attribute contains value</code> - one of the attribute's values
+ * equals value.</li>
+ * <li><code>attribute in (value, ...)</code> - one of the attribute's values
+ * equals one of the listed values.</li>
+ * <li><code>profile</code> - a bare name refers to another profile, either
+ * declared here or checked by the application's Security.check() hook.</li>
+ * </ul>
+ *
+ * Values containing spaces, commas or parentheses may be double quoted. A
+ * profile listed in another's <code>.implies</code> is granted to everyone
+ * with that other profile.
+ */
+public final class ProfileRules {
+
+	/** Configuration prefix for profile rules */
+	public static final String PROFILE_PREFIX = "shib.profile.";
+
+	/** Configuration suffix for profile implications */
+	public static final String IMPLIES_SUFFIX = ".implies";
+
+	/**
+	 * The context rules are evaluated in, providing the current user's
+	 * attributes and other profiles.
+	 */
+	public interface Context {
+
+		/**
+		 * @return True if one of the attribute's values equals value.
+		 */
+		boolean contains(String attribute, String value);
+
+		/**
+		 * @return True if the user has the profile, whether declared or not.
+		 */
+		boolean hasProfile(String profile) throws Throwable;
+
+		/**
+		 * @return The application's check() hook result for an undeclared
+		 *         profile.
+		 */
+		boolean check(String profile) throws Throwable;
+	}
+
+	/**
+	 * A compiled rule.
+	 */
+	public static abstract class Rule {
+
+		/**
+		 * @return True if the rule holds in the context.
+		 */
+		public abstract boolean matches(Context context) throws Throwable;
+	}
+
+	/** The compiled rules of each declared or implied profile */
+	private final Map<String, Rule> rules;
+
+	/** The profiles left to the check() hook that each rule depends on */
+	private final Map<String, String[]> checks;
+
+	/**
+	 * Compile the profile rules in the configuration.
+	 *
+	 * @throws ConfigurationException
+	 *             if a rule can not be parsed, or profiles refer to each other
+	 *             in a cycle.
+	 */
+	ProfileRules(Properties configuration) {
+		Map<String, String> expressions = new LinkedHashMap<String, String>();
+		Map<String, List<String>> impliedBy = new HashMap<String, List<String>>();
+
+		for (Object keyObj : configuration.keySet()) {
+			if (!(keyObj instanceof String))
+				continue;
+			String key = (String) keyObj;
+			if (!key.startsWith(PROFILE_PREFIX))
+				continue;
+
+			String value = configuration.getProperty(key).trim();
+			String name = key.substring(PROFILE_PREFIX.length());
+			if (name.endsWith(IMPLIES_SUFFIX)) {
+				name = name.substring(0, name.length() - IMPLIES_SUFFIX.length());
+				for (String implied : value.split(",")) {
+					implied = implied.trim();
+					if (implied.length() == 0)
+						continue;
+					List<String> by = impliedBy.get(implied);
+					if (by == null) {
+						by = new ArrayList<String>();
+						impliedBy.put(implied, by);
+					}
+					by.add(name);
+				}
+			} else {
+				expressions.put(name, value);
+			}
+		}
+
+		Map<String, Rule> compiled = new HashMap<String, Rule>();
+		Set<String> hooked = new HashSet<String>();
+		Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, String> expression : expressions.entrySet()) {
+			Set<String> referenced = new HashSet<String>();
+			Parser parser = new Parser(expression.getKey(), expression.getValue(), referenced);
+			compiled.put(expression.getKey(), parser.parse());
+			references.put(expression.getKey(), referenced);
+		}
+
+		// Grant implied profiles to everyone holding a profile implying them.
+		for (Map.Entry<String, List<String>> implied : impliedBy.entrySet()) {
+			String name = implied.getKey();
+			List<Rule> any = new ArrayList<Rule>();
+			Rule own = compiled.get(name);
+			any.add(own != null ? own : new Hook(name));
+			if (own == null)
+				hooked.add(name);
+
+			Set<String> referenced = references.get(name);
+			if (referenced == null) {
+				referenced = new HashSet<String>();
+				references.put(name, referenced);
+			}
+			for (String by : implied.getValue()) {
+				any.add(new Reference(by));
+				referenced.add(by);
+			}
+			compiled.put(name, new Or(any.toArray(new Rule[any.size()])));
+		}
+
+		// A profile must not end up depending on itself.
+		for (String name : compiled.keySet())
+			findCycle(name, references, new ArrayList<String>());
+
+		rules = Collections.unmodifiableMap(compiled);
+
+		checks = new HashMap<String, String[]>();
+		for (String name : compiled.keySet()) {
+			Set<String> found = new HashSet<String>();
+			findChecks(name, compiled, hooked, references, new HashSet<String>(), found);
+			checks.put(name, found.toArray(new String[found.size()]));
+		}
+	}
+
+	/**
+	 * @return The compiled rule for the profile, or null if the profile is
+	 *         not declared and left to the check() hook.
+	 */
+	public Rule rule(String profile) {
+		return rules.get(profile);
+	}
+
+	/**
+	 * @return The profiles left to the check() hook that the profile's rule
+	 *         refers to, directly or through other rules. The rule's result
+	 *         may only be reused if these profiles' checks may be.
+	 */
+	public String[] checks(String profile) {
+		String[] found = checks.get(profile);
+		return found == null ? new String[] { profile } : found;
+	}
+
+	/**
+	 * @return True if no profiles are declared.
+	 */
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	private static void findChecks(String name, Map<String, Rule> compiled,
+			Set<String> hooked, Map<String, Set<String>> references,
+			Set<String> visited, Set<String> found) {
+		if (!visited.add(name))
+			return;
+		if (!compiled.containsKey(name) || hooked.contains(name))
+			found.add(name);
+		Set<String> referenced = references.get(name);
+		if (referenced == null)
+			return;
+		for (String reference : referenced) {
+			if (compiled.containsKey(reference))
+				findChecks(reference, compiled, hooked, references, visited, found);
+			else
+				found.add(reference);
+		}
+	}
+
+	private static void findCycle(String name,
+			Map<String, Set<String>> references, List<String> path) {
+		if (path.contains(name)) {
+			path.add(name);
+			throw new ConfigurationException("Shibboleth profiles refer to each other: " + path);
+		}
+		Set<String> referenced = references.get(name);
+		if (referenced == null)
+			return;
+		path.add(name);
+		for (String reference : referenced)
+			findCycle(reference, references, path);
+		path.remove(path.size() - 1);
+	}
+
+	/**
+	 * Recursive descent parser for a single profile's expression.
+	 *
+	 * <pre>
+	 * or    := and ( "or" and )*
+	 * and   := unary ( "and" unary )*
+	 * unary := "not" unary | "(" or ")" | test
+	 * test  := name "contains" value | name "in" "(" value ( "," value )* ")" | name
+	 * </pre>
+	 */
+	private static final class Parser {
+
+		private final String profile;
+		private final String expression;
+		private final Set<String> referenced;
+		private final List<String> tokens = new ArrayList<String>();
+
+		/** Which tokens were quoted, and so never keywords */
+		private final List<Boolean> quoted = new ArrayList<Boolean>();
+		private int position = 0;
+
+		Parser(String profile, String expression, Set<String> referenced) {
+			this.profile = profile;
+			this.expression = expression;
+			this.referenced = referenced;
+			tokenize();
+		}
+
+		Rule parse() {
+			Rule rule = or();
+			if (position < tokens.size())
+				throw error("unexpected '" + tokens.get(position) + "'");
+			return rule;
+		}
+
+		private Rule or() {
+			List<Rule> any = new ArrayList<Rule>();
+			any.add(and());
+			while (keyword("or"))
+				any.add(and());
+			return any.size() == 1 ? any.get(0) : new Or(any.toArray(new Rule[any.size()]));
+		}
+
+		private Rule and() {
+			List<Rule> all = new ArrayList<Rule>();
+			all.add(unary());
+			while (keyword("and"))
+				all.add(unary());
+			return all.size() == 1 ? all.get(0) : new And(all.toArray(new Rule[all.size()]));
+		}
+
+		private Rule unary() {
+			if (keyword("not"))
+				return new Not(unary());
+			if (symbol("(")) {
+				Rule rule = or();
+				expect(")");
+				return rule;
+			}
+
+			String name = word();
+			if (keyword("contains"))
+				return new Contains(name, new String[] { word() });
+			if (keyword("in")) {
+				expect("(");
+				List<String> values = new ArrayList<String>();
+				do {
+					values.add(word());
+				} while (symbol(","));
+				expect(")");
+				return new Contains(name, values.toArray(new String[values.size()]));
+			}
+			referenced.add(name);
+			return new Reference(name);
+		}
+
+		/** Consume the keyword, if it is next */
+		private boolean keyword(String keyword) {
+			if (position < tokens.size() && !quoted.get(position)
+					&& keyword.equalsIgnoreCase(tokens.get(position))) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		/** Consume the symbol, if it is next */
+		private boolean symbol(String symbol) {
+			if (position < tokens.size() && !quoted.get(position)
+					&& symbol.equals(tokens.get(position))) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String symbol) {
+			if (!symbol(symbol))
+				throw error("expected '" + symbol + "'");
+		}
+
+		/** Consume a name or value */
+		private String word() {
+			if (position >= tokens.size())
+				throw error("unexpected end");
+			String token = tokens.get(position);
+			if (!quoted.get(position) && (token.length() == 1 && "(),".indexOf(token.charAt(0)) >= 0))
+				throw error("unexpected '" + token + "'");
+			position++;
+			return token;
+		}
+
+		private void tokenize() {
+			int i = 0;
+			while (i < expression.length()) {
+				char c = expression.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '(' || c == ')' || c == ',') {
+					add(String.valueOf(c), false);
+					i++;
+				} else if (c == '"') {
+					int end = expression.indexOf('"', i + 1);
+					if (end < 0)
+						throw error("unterminated quote");
+					add(expression.substring(i + 1, end), true);
+					i = end + 1;
+				} else {
+					int start = i;
+					while (i < expression.length()) {
+						c = expression.charAt(i);
+						if (Character.isWhitespace(c) || c == '(' || c == ')' || c == ',' || c == '"')
+							break;
+						i++;
+					}
+					add(expression.substring(start, i), false);
+				}
+			}
+		}
+
+		private void add(String token, boolean isQuoted) {
+			tokens.add(token);
+			quoted.add(isQuoted);
+		}
+
+		private ConfigurationException error(String message) {
+			return new ConfigurationException("Unable to parse " + PROFILE_PREFIX
+					+ profile + " = " + expression + ", " + message);
+		}
+	}
+
+	/** One of the attribute's values is one of the listed values */
+	private static final class Contains extends Rule {
+		private final String attribute;
+		private final String[] values;
+
+		Contains(String attribute, String[] values) {
+			this.attribute = attribute;
+			this.values = values;
+		}
+
+		public boolean matches(Context context) {
+			for (int i = 0; i < values.length; i++) {
+				if (context.contains(attribute, values[i]))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/** Another profile */
+	private static final class Reference extends Rule {
+		private final String profile;
+
+		Reference(String profile) {
+			this.profile = profile;
+		}
+
+		public boolean matches(Context context) throws Throwable {
+			return context.hasProfile(profile);
+		}
+	}
+
+	/** The check() hook, for an implied profile without its own rule */
+	private static final class Hook extends Rule {
+		private final String profile;
+
+		Hook(String profile) {
+			this.profile = profile;
+		}
+
+		public boolean matches(Context context) throws Throwable {
+			return context.check(profile);
+		}
+	}
+
+	private static final class Not extends Rule {
+		private final Rule rule;
+
+		Not(Rule rule) {
+			this.rule = rule;
+		}
+
+		public boolean matches(Context context) throws Throwable {
+			return !rule.matches(context);
+		}
+	}
+
+	private static final class And extends Rule {
+		private final Rule[] rules;
+
+		And(Rule[] rules) {
+			this.rules = rules;
+		}
+
+		public boolean matches(Context context) throws Throwable {
+			for (Rule rule : rules) {
+				if (!rule.matches(context))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private static final class Or extends Rule {
+		private final Rule[] rules;
+
+		Or(Rule[] rules) {
+			this.rules = rules;
+		}
+
+		public boolean matches(Context context) throws Throwable {
+			for (Rule rule : rules) {
+				if (rule.matches(context))
+					return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package play.modules.shibboleth;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import play.libs.Time;
+
+/**
+ * Remembers revoked logins, so that session cookies already issued can be
+ * invalidated by a single logout or an administrator. A revocation is keyed
+ * by a principal or a session id and applies to every login at or before the
+ * time it was made, logging in again afterwards is not affected.
+ *
+ * Every authenticated request is checked, so the keys are first looked up in
+ * a Bloom filter: for the usual key that was never revoked this is a hash
+ * probe or two, and only keys the filter may contain are looked up in the
+ * exact map. Revocations are forgotten after shib.revocation.ttl, and the
+ * filter is then rebuilt. Play's session cookies do not expire on the
+ * server, so logins older than the ttl, which may have been revoked and
+ * forgotten, count as revoked too.
+ *
+ * Revocations are kept in memory, so each application node has its own.
+ */
+public final class RevocationRegistry {
+
+	/** The registries of principals and of session ids, null until started */
+	private static volatile RevocationRegistry principals = null;
+	private static volatile RevocationRegistry sessions = null;
+
+	/** The settings the registries were created with */
+	private static String settings = null;
+
+	private final int size;
+	private final long ttl;
+
+	/** When each key was revoked, in milliseconds since the epoch */
+	private final ConcurrentMap<String, Long> revoked = new ConcurrentHashMap<String, Long>();
+
+	/** The revoked keys, rebuilt when revocations are forgotten */
+	private volatile Bloom filter;
+
+	/** When to next forget old revocations */
+	private long purge;
+
+	/**
+	 * @param size
+	 *            The number of revocations expected to be remembered at once,
+	 *            more are allowed but make the filter less selective.
+	 * @param ttl
+	 *            How long to remember a revocation, and so the longest a login
+	 *            lasts, in milliseconds.
+	 */
+	public RevocationRegistry(int size, long ttl) {
+		this.size = size;
+		this.ttl = ttl;
+		this.filter = new Bloom(size);
+		this.purge = System.currentTimeMillis() + ttl;
+	}
+
+	/**
+	 * Revoke every login with the key made at or before the time.
+	 *
+	 * @param key
+	 *            The principal or session id.
+	 * @param at
+	 *            The time, in milliseconds since the epoch.
+	 */
+	public synchronized void revoke(String key, long at) {
+		Long previous = revoked.get(key);
+		if (previous == null || previous.longValue() < at)
+			revoked.put(key, at);
+		filter.add(key);
+
+		if (at >= purge)
+			purge(at);
+	}
+
+	/**
+	 * @param key
+	 *            The principal or session id, may be null.
+	 * @param login
+	 *            When the user logged in, in milliseconds since the epoch.
+	 * @return True if the login has been revoked, or is older than the ttl.
+	 */
+	public boolean isRevoked(String key, long login) {
+		return isRevoked(key, login, System.currentTimeMillis());
+	}
+
+	/**
+	 * See isRevoked(String, long).
+	 *
+	 * @param now
+	 *            The time, in milliseconds since the epoch.
+	 */
+	public boolean isRevoked(String key, long login, long now) {
+		// A revocation of the login may already have been forgotten.
+		if (login + ttl < now)
+			return true;
+		if (key == null || !filter.mightContain(key))
+			return false;
+		Long at = revoked.get(key);
+		return at != null && login <= at.longValue();
+	}
+
+	/**
+	 * @return The number of revocations remembered.
+	 */
+	public int size() {
+		return revoked.size();
+	}
+
+	/**
+	 * Forget revocations older than the ttl and rebuild the filter from the
+	 * rest.
+	 */
+	private void purge(long now) {
+		Bloom rebuilt = new Bloom(size);
+		Iterator<Map.Entry<String, Long>> entries = revoked.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Long> entry = entries.next();
+			if (entry.getValue().longValue() + ttl < now)
+				entries.remove();
+			else
+				rebuilt.add(entry.getKey());
+		}
+		filter = rebuilt;
+		purge = now + ttl;
+	}
+
+	/**
+	 * A Bloom filter of strings, sized for a 1% false positive rate. Bits are
+	 * only ever set, so it may be read without locking.
+	 */
+	private static final class Bloom {
+		private static final int HASHES = 7;
+
+		private final AtomicLongArray words;
+		private final int bits;
+
+		Bloom(int expected) {
+			// About 9.6 bits per key gives 1% false positives with 7 hashes.
+			long wanted = Math.max(64L, (long) Math.ceil(expected * 9.6));
+			int count = (int) Math.min((wanted + 63) / 64, Integer.MAX_VALUE / 64);
+			this.words = new AtomicLongArray(count);
+			this.bits = count * 64;
+		}
+
+		void add(String key) {
+			int h1 = mix(key.hashCode());
+			int h2 = mix(h1 ^ 0x5bd1e995) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+				long mask = 1L << bit;
+				for (;;) {
+					long word = words.get(bit >>> 6);
+					if ((word & mask) != 0
+							|| words.compareAndSet(bit >>> 6, word, word | mask))
+						break;
+				}
+			}
+		}
+
+		boolean mightContain(String key) {
+			int h1 = mix(key.hashCode());
+			int h2 = mix(h1 ^ 0x5bd1e995) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+				if ((words.get(bit >>> 6) & (1L << bit)) == 0)
+					return false;
+			}
+			return true;
+		}
+
+		/** Spread the bits of a String hash, as in MurmurHash3's finalizer */
+		private static int mix(int h) {
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h;
+		}
+	}
+
+	/**
+	 * Revoke every login by the user made until now, for example when an
+	 * administrator ends all of a user's sessions.
+	 *
+	 * @param principal
+	 *            The user's principal, see shib.principal
+	 */
+	public static void revokePrincipal(String principal) {
+		RevocationRegistry registry = principals;
+		if (registry != null && principal != null)
+			registry.revoke(principal, System.currentTimeMillis());
+	}
+
+	/**
+	 * Revoke the login with the session id made until now, for example when
+	 * the Shibboleth session has been logged out.
+	 *
+	 * @param session
+	 *            The Shibboleth session id (see shib.session.header), or the
+	 *            module's own id if there was no Shibboleth session id.
+	 */
+	public static void revokeSession(String session) {
+		RevocationRegistry registry = sessions;
+		if (registry != null && session != null)
+			registry.revoke(session, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param principal
+	 *            The user's principal, may be null.
+	 * @param session
+	 *            The login's session id, may be null.
+	 * @param login
+	 *            When the user logged in, in milliseconds since the epoch.
+	 * @return True if the login has been revoked by principal or session id.
+	 */
+	public static boolean isRevoked(String principal, String session,
+			long login) {
+		RevocationRegistry byPrincipal = principals;
+		RevocationRegistry bySession = sessions;
+		return (byPrincipal != null && byPrincipal.isRevoked(principal, login))
+				|| (bySession != null && bySession.isRevoked(session, login));
+	}
+
+	/**
+	 * Create the registries from the configuration, keeping the existing ones
+	 * if their settings have not changed so that revocations survive DEV mode
+	 * reloads. The ttl defaults to application.session.maxAge, if set.
+	 */
+	static synchronized void start(Properties configuration) {
+		int size = Integer.parseInt(configuration.getProperty(
+				"shib.revocation.size", "10000"));
+		long ttl = Time.parseDuration(configuration.getProperty(
+				"shib.revocation.ttl", configuration.getProperty(
+						"application.session.maxAge", "8h"))) * 1000L;
+
+		String current = size + "," + ttl;
+		if (current.equals(settings))
+			return;
+		principals = new RevocationRegistry(size, ttl);
+		sessions = new RevocationRegistry(size, ttl);
+		settings = current;
+	}
+}
@@ -0,0 +1,324 @@
+package play.modules.shibboleth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+import play.Logger;
+import play.Play;
+import play.Play.Mode;
+import play.libs.Time;
+
+/**
+ * An immutable snapshot of the Shibboleth module's configuration. The snapshot
+ * is built once from the Play! configuration when the application starts (and
+ * again whenever the configuration is reloaded in DEV mode) so that the
+ * request handling code never has to scan or parse the configuration itself.
+ *
+ * The attribute mapping is stored as two parallel arrays, sorted by attribute
+ * name, so that index <code>i</code> maps the session attribute
+ * <code>attributeNames[i]</code> to the HTTP header
+ * <code>headerNames[i]</code>.
+ */
+public final class ShibbolethConfig {
+
+	/** Configuration prefix for attribute to header mappings */
+	public static final String ATTRIBUTE_PREFIX = "shib.attribute.";
+
+	/** The current configuration snapshot, swapped atomically on reload */
+	private static volatile ShibbolethConfig current = null;
+
+	/** Is Shibboleth being mocked for testing? */
+	public final boolean mock;
+
+	/** Should an unauthenticated user be sent to the login initiator? */
+	public final boolean login;
+
+	/**
+	 * Should a user arriving with Shibboleth headers already on the request be
+	 * authenticated in place, without redirecting through authenticate?
+	 */
+	public final boolean loginInline;
+
+	/** The Shibboleth login initiator, may be null for the default. */
+	public final String loginUrl;
+
+	/** Where to send the user after login when no url was interrupted. */
+	public final String loginReturn;
+
+	/** Should a logout also be sent to the logout initiator? */
+	public final boolean logout;
+
+	/** The Shibboleth logout initiator, may be null for the default. */
+	public final String logoutUrl;
+
+	/** Where to send the user after logout, may be null for the default. */
+	public final String logoutReturn;
+
+	/** The application's base url, may be null to use the request's base. */
+	public final String baseUrl;
+
+	/** Session attribute names, parallel to headerNames. */
+	private final String[] attributeNames;
+
+	/** HTTP header names, parallel to attributeNames. */
+	private final String[] headerNames;
+
+	/** Each attribute's transform, or null, parallel to attributeNames. */
+	private final AttributeTransform[] transforms;
+
+	/** The index of each attribute name in attributeNames. */
+	private final Map<String, Integer> attributeIndex;
+
+	/** A hash of the attribute names, identifying their ordering. */
+	public final int attributeFingerprint;
+
+	/** Should attributes kept in the session be compactly encoded? */
+	public final boolean compactSession;
+
+	/** The attributes required for successful authentication. */
+	private final String[] requiredAttributes;
+
+	/** The same required attributes, for membership tests. */
+	public final Set<String> required;
+
+	/**
+	 * The attribute identifying the user in the audit trail, by default the
+	 * first required attribute. May be null.
+	 */
+	public final String principal;
+
+	/** The most login round trips a url may make within the loop window. */
+	public final int loopMax;
+
+	/** The window login round trips are counted in, in milliseconds. */
+	public final long loopWindow;
+
+	/** The header holding the Shibboleth session id, see RevocationRegistry. */
+	public final String sessionHeader;
+
+	/** The secret the back-channel logout requires, null to disable it. */
+	public final String logoutSecret;
+
+	/**
+	 * Permits for the background hook tasks waiting or running at once, see
+	 * Security.inBackground().
+	 */
+	public final Semaphore hookPermits;
+
+	/**
+	 * How long a login waits for the onAuthenticatedAsync() hook, in
+	 * milliseconds.
+	 */
+	public final long hookTimeout;
+
+	/**
+	 * Remote addresses allowed to use the Diagnostics controller, none unless
+	 * configured.
+	 */
+	public final Set<String> diagnosticsAllow;
+
+	/**
+	 * The secret required to see captured headers outside DEV mode, null to
+	 * only show them in DEV mode.
+	 */
+	public final String diagnosticsSecret;
+
+	/** The declared shib.profile.* rules, see ProfileRules. */
+	public final ProfileRules profiles;
+
+	private ShibbolethConfig(Properties configuration, Mode mode) {
+
+		mock = mode == Mode.DEV
+				&& "mock".equalsIgnoreCase(configuration.getProperty("shib"));
+
+		login = Boolean.parseBoolean(configuration.getProperty("shib.login",
+				"false"));
+		loginInline = Boolean.parseBoolean(configuration.getProperty(
+				"shib.login.inline", "false"));
+		loginUrl = configuration.getProperty("shib.login.url", null);
+		loginReturn = configuration.getProperty("shib.login.return", "/");
+
+		logout = "true".equalsIgnoreCase(configuration.getProperty(
+				"shib.logout", "false"));
+		logoutUrl = configuration.getProperty("shib.logout.url", null);
+		logoutReturn = configuration.getProperty("shib.logout.return", null);
+
+		baseUrl = configuration.getProperty("application.baseUrl", null);
+
+		// Attribute mapping, sorted so the ordering is stable between reloads.
+		// A <name>.transform key is only a transform if <name> is mapped.
+		Set<String> keys = new HashSet<String>();
+		for (Object keyObj : configuration.keySet()) {
+			if (keyObj instanceof String) {
+				String key = (String) keyObj;
+				if (key.startsWith(ATTRIBUTE_PREFIX))
+					keys.add(key.substring(ATTRIBUTE_PREFIX.length()));
+			}
+		}
+		List<String> attributes = new ArrayList<String>();
+		for (String key : keys) {
+			if (key.endsWith(AttributeTransform.TRANSFORM_SUFFIX)) {
+				String attribute = key.substring(0, key.length()
+						- AttributeTransform.TRANSFORM_SUFFIX.length());
+				if (keys.contains(attribute))
+					continue;
+				Logger.warn("Shib: No attribute " + attribute + " to transform, mapping "
+						+ ATTRIBUTE_PREFIX + key + " as an attribute.");
+			}
+			attributes.add(key);
+		}
+		Collections.sort(attributes);
+
+		attributeNames = attributes.toArray(new String[attributes.size()]);
+		headerNames = new String[attributeNames.length];
+		transforms = new AttributeTransform[attributeNames.length];
+		attributeIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < attributeNames.length; i++) {
+			headerNames[i] = configuration.getProperty(ATTRIBUTE_PREFIX
+					+ attributeNames[i]);
+			transforms[i] = AttributeTransform.compile(attributeNames[i],
+					configuration.getProperty(ATTRIBUTE_PREFIX + attributeNames[i]
+							+ AttributeTransform.TRANSFORM_SUFFIX));
+			attributeIndex.put(attributeNames[i], i);
+		}
+		attributeFingerprint = attributes.hashCode();
+
+		compactSession = "compact".equalsIgnoreCase(configuration.getProperty(
+				"shib.session.encoding", "plain"));
+
+		// Required attributes
+		Set<String> requiredSet = new LinkedHashSet<String>();
+		String shibRequired = configuration.getProperty("shib.require", null);
+		if (shibRequired != null) {
+			for (String attribute : shibRequired.split(",")) {
+				attribute = attribute.trim();
+				if (attribute.length() > 0)
+					requiredSet.add(attribute);
+			}
+		}
+		requiredAttributes = requiredSet.toArray(new String[requiredSet.size()]);
+		required = Collections.unmodifiableSet(requiredSet);
+
+		principal = configuration.getProperty("shib.principal",
+				requiredAttributes.length > 0 ? requiredAttributes[0] : null);
+
+		loopMax = Integer.parseInt(configuration.getProperty("shib.loop.max",
+				"5"));
+		loopWindow = Time.parseDuration(configuration.getProperty(
+				"shib.loop.window", "1min")) * 1000L;
+
+		sessionHeader = configuration.getProperty("shib.session.header",
+				"Shib-Session-ID");
+		logoutSecret = configuration.getProperty("shib.logout.secret", null);
+
+		hookPermits = new Semaphore(Integer.parseInt(configuration.getProperty(
+				"shib.hooks.pending", "100")));
+		hookTimeout = Time.parseDuration(configuration.getProperty(
+				"shib.hooks.timeout", "10s")) * 1000L;
+
+		Set<String> allow = new LinkedHashSet<String>();
+		for (String address : configuration.getProperty(
+				"shib.diagnostics.allow", "").split(",")) {
+			address = address.trim();
+			if (address.length() > 0)
+				allow.add(address);
+		}
+		diagnosticsAllow = Collections.unmodifiableSet(allow);
+		diagnosticsSecret = configuration.getProperty("shib.diagnostics.secret", null);
+
+		profiles = new ProfileRules(configuration);
+	}
+
+	/**
+	 * @return The number of mapped attributes.
+	 */
+	public int attributeCount() {
+		return attributeNames.length;
+	}
+
+	/**
+	 * @param i
+	 *            Index of the mapping, 0 &lt;= i &lt; attributeCount()
+	 * @return The session attribute name of the i'th mapping.
+	 */
+	public String attributeName(int i) {
+		return attributeNames[i];
+	}
+
+	/**
+	 * @param i
+	 *            Index of the mapping, 0 &lt;= i &lt; attributeCount()
+	 * @return The HTTP header name of the i'th mapping.
+	 */
+	public String headerName(int i) {
+		return headerNames[i];
+	}
+
+	/**
+	 * @param i
+	 *            Index of the mapping, 0 &lt;= i &lt; attributeCount()
+	 * @return The transform of the i'th mapping's values, or null if it has
+	 *         none.
+	 */
+	public AttributeTransform transform(int i) {
+		return transforms[i];
+	}
+
+	/**
+	 * @param name
+	 *            A session attribute name
+	 * @return The index of the attribute's mapping, or -1 if it is not mapped.
+	 */
+	public int attributeIndex(String name) {
+		Integer index = attributeIndex.get(name);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @return The number of required attributes.
+	 */
+	public int requiredCount() {
+		return requiredAttributes.length;
+	}
+
+	/**
+	 * @param i
+	 *            Index of the required attribute, 0 &lt;= i &lt;
+	 *            requiredCount()
+	 * @return The i'th required attribute name.
+	 */
+	public String requiredAttribute(int i) {
+		return requiredAttributes[i];
+	}
+
+	/**
+	 * @return The current configuration snapshot. If the plugin has not
+	 *         loaded one yet it is built from the current configuration.
+	 */
+	public static ShibbolethConfig current() {
+		ShibbolethConfig config = current;
+		if (config == null)
+			config = reload();
+		return config;
+	}
+
+	/**
+	 * Build a new snapshot from the Play! configuration and make it current.
+	 *
+	 * @return The new snapshot.
+	 */
+	public static ShibbolethConfig reload() {
+		ShibbolethConfig config = new ShibbolethConfig(Play.configuration,
+				Play.mode);
+		current = config;
+		return config;
+	}
+}
@@ -0,0 +1,94 @@
+package play.modules.shibboleth;
+
+import java.io.File;
+
+import play.Logger;
+import play.Play;
+import play.PlayPlugin;
+import play.exceptions.UnexpectedException;
+import play.libs.Time;
+
+/**
+ * Shibboleth module plugin. Builds the module's configuration snapshot when
+ * the application starts, which in DEV mode also happens every time the
+ * configuration is changed and reloaded.
+ */
+public class ShibbolethPlugin extends PlayPlugin {
+
+	/** The attribute store, or null if attributes are kept in the session */
+	private static volatile AttributeStore store = null;
+
+	/** The settings the current store was created with */
+	private static String storeSettings = null;
+
+	/**
+	 * @return The configured attribute store, or null if the attributes are
+	 *         kept in the session cookie.
+	 */
+	public static AttributeStore attributeStore() {
+		return store;
+	}
+
+	@Override
+	public void onApplicationStart() {
+		ShibbolethConfig config = ShibbolethConfig.reload();
+		Logger.debug("Shib: Loaded configuration, " + config.attributeCount()
+				+ " mapped attributes, " + config.requiredCount()
+				+ " required.");
+
+		AuditLog.start(Play.configuration);
+		Metrics.start(Play.configuration);
+		WriteBehind.start(Play.configuration);
+		RevocationRegistry.start(Play.configuration);
+		LoginThrottle.start(Play.configuration);
+		HeaderCapture.start(Play.configuration);
+		startStore();
+	}
+
+	@Override
+	public void onApplicationStop() {
+		AuditLog.stop();
+		WriteBehind.stop();
+	}
+
+	/**
+	 * Create the attribute store named by shib.store: session (the default),
+	 * memory, file, or the name of a class implementing AttributeStore. The
+	 * existing store is kept if its settings have not changed, so users stay
+	 * logged in across DEV mode reloads.
+	 */
+	private static synchronized void startStore() {
+		String type = Play.configuration.getProperty("shib.store", "session");
+		int size = Integer.parseInt(Play.configuration.getProperty(
+				"shib.store.size", "10000"));
+		long ttl = Time.parseDuration(Play.configuration.getProperty(
+				"shib.store.ttl", "8h")) * 1000L;
+		String path = Play.configuration.getProperty("shib.store.path",
+				"tmp/shibboleth");
+
+		String settings = type + "," + size + "," + ttl + "," + path;
+		if (settings.equals(storeSettings))
+			return;
+
+		if ("session".equals(type)) {
+			store = null;
+		} else if ("memory".equals(type)) {
+			store = new MemoryAttributeStore(size, ttl);
+		} else if ("file".equals(type)) {
+			File directory = new File(path);
+			if (!directory.isAbsolute())
+				directory = new File(Play.applicationPath, path);
+			store = new FileAttributeStore(directory, size, ttl);
+		} else {
+			try {
+				store = (AttributeStore) Play.classloader.loadClass(type)
+						.newInstance();
+			} catch (Exception e) {
+				throw new UnexpectedException("Unable to create shib.store "
+						+ type, e);
+			}
+		}
+		storeSettings = settings;
+		Logger.debug("Shib: Keeping attributes in the " + type + " store.");
+	}
+}
@@ -0,0 +1,55 @@
+package play.modules.shibboleth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A user's attributes as of their latest login, to be written back to the
+ * application's user records, see WriteBehind.
+ */
+public final class UserRecord {
+
+	/** The user's principal, see shib.principal */
+	public final String principal;
+
+	/** The user's attributes, never modified */
+	public final Map<String, String> attributes;
+
+	/** When the user logged in, in milliseconds since the epoch */
+	public final long login;
+
+	/**
+	 * False if the attributes are the same as when last written, so a sink
+	 * need only write the login time.
+	 */
+	public final boolean changed;
+
+	public UserRecord(String principal, Map<String, String> attributes,
+			long login) {
+		this.principal = principal;
+		this.attributes = Collections
+				.unmodifiableMap(new HashMap<String, String>(attributes));
+		this.login = login;
+		this.changed = true;
+	}
+
+	private UserRecord(UserRecord record) {
+		this.principal = record.principal;
+		this.attributes = record.attributes;
+		this.login = record.login;
+		this.changed = false;
+	}
+
+	/**
+	 * @return The same record, marked as having unchanged attributes.
+	 */
+	UserRecord unchanged() {
+		return changed ? new UserRecord(this) : this;
+	}
+
+	@Override
+	public String toString() {
+		return principal + " " + attributes;
+	}
+}
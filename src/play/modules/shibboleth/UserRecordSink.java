@@ -0,0 +1,22 @@
+package play.modules.shibboleth;
+
+import java.util.List;
+
+/**
+ * Writes batches of user records, see WriteBehind. Configure a sink with
+ * <code>shib.records = jdbc</code> or the name of a class implementing this
+ * interface with a public no argument constructor.
+ */
+public interface UserRecordSink {
+
+	/**
+	 * Write a batch of records, at most one for each principal. Records
+	 * whose attributes have not changed since they were last written are
+	 * marked, see UserRecord.changed, but their login time should still be
+	 * written. If this throws the whole batch is retried later.
+	 *
+	 * @param records
+	 *            The records to write.
+	 */
+	void write(List<UserRecord> records) throws Exception;
+}
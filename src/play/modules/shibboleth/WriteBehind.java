@@ -0,0 +1,315 @@
+package play.modules.shibboleth;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.libs.Time;
+
+/**
+ * Writes users' attributes back to the application's user records behind the
+ * logins, so that login latency does not depend on the database. Each login
+ * replaces any record still waiting for the same principal, a background
+ * thread writes the waiting records in batches, once enough are waiting or
+ * periodically. Records whose attributes are the same as when last written,
+ * compared by SHA-256 digest, are marked unchanged so that only their login
+ * time is written. While the sink keeps failing, the waits between attempts
+ * double, up to 64 times the interval.
+ *
+ * Enabled with <code>shib.records = jdbc</code> (see JdbcUserRecordSink) or
+ * the name of a UserRecordSink class, see the module documentation for the
+ * other settings.
+ */
+public final class WriteBehind {
+
+	/** The running queue, or null if disabled */
+	private static volatile WriteBehind current = null;
+
+	/** The most principals whose last written attributes are remembered */
+	private static final int REMEMBERED = 100000;
+
+	/** The most times the interval is doubled while the sink is failing */
+	private static final int MAX_BACKOFF = 6;
+
+	private final UserRecordSink sink;
+	private final int batch;
+	private final long intervalNanos;
+	private final int maxPending;
+
+	/** The latest record waiting for each principal */
+	private final ConcurrentMap<String, UserRecord> pending = new ConcurrentHashMap<String, UserRecord>();
+
+	/** A digest of each principal's attributes as last written */
+	private final Map<String, byte[]> written = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > REMEMBERED;
+		}
+	};
+
+	/** Records dropped because too many were waiting */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** Batches that have failed to write since one was last written */
+	private volatile int failures = 0;
+
+	private final Thread flusher;
+	private volatile boolean running = true;
+
+	/**
+	 * @param sink
+	 *            Where the records are written.
+	 * @param batch
+	 *            The most records written at once, a flush is started as soon
+	 *            as this many are waiting.
+	 * @param interval
+	 *            How often waiting records are written, in milliseconds.
+	 * @param maxPending
+	 *            The most records which may wait, further records are dropped.
+	 */
+	public WriteBehind(UserRecordSink sink, int batch, long interval,
+			int maxPending) {
+		this.sink = sink;
+		this.batch = batch;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+		this.maxPending = maxPending;
+		this.flusher = new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, "shibboleth-records");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Queue a user's record, replacing any record still waiting for them.
+	 * This never blocks.
+	 *
+	 * @return False if the record was dropped because too many are waiting.
+	 */
+	public boolean offer(UserRecord record) {
+		if (pending.size() >= maxPending && !pending.containsKey(record.principal)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		pending.put(record.principal, record);
+		if (pending.size() >= batch)
+			LockSupport.unpark(flusher);
+		return true;
+	}
+
+	/**
+	 * Write all the waiting records now.
+	 *
+	 * @return The number of records written, including those with unchanged
+	 *         attributes.
+	 */
+	public synchronized int flush() {
+		List<UserRecord> records = new ArrayList<UserRecord>(batch);
+		List<byte[]> digests = new ArrayList<byte[]>(batch);
+		int count = 0;
+		Iterator<String> principals = pending.keySet().iterator();
+		while (principals.hasNext()) {
+			UserRecord record = pending.remove(principals.next());
+			if (record == null)
+				continue;
+			byte[] digest = digest(record.attributes);
+			byte[] last = written.get(record.principal);
+			if (last != null && MessageDigest.isEqual(digest, last))
+				record = record.unchanged();
+
+			records.add(record);
+			digests.add(digest);
+			if (records.size() == batch) {
+				int written = write(records, digests);
+				if (written == 0)
+					// The sink is failing, leave the rest for the next attempt.
+					return count;
+				count += written;
+				records.clear();
+				digests.clear();
+			}
+		}
+		if (!records.isEmpty())
+			count += write(records, digests);
+		return count;
+	}
+
+	/**
+	 * Stop the background thread, writing any records still waiting.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return The number of records waiting to be written.
+	 */
+	public int pending() {
+		return pending.size();
+	}
+
+	/**
+	 * @return The number of records dropped because too many were waiting.
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of batches that have failed to write since one was
+	 *         last written.
+	 */
+	public int failures() {
+		return failures;
+	}
+
+	/**
+	 * Write one batch, putting the records back to be retried if it fails.
+	 * 
+	 * @param digests
+	 *            The digests of the records' attributes, in the same order.
+	 */
+	private int write(List<UserRecord> records, List<byte[]> digests) {
+		try {
+			sink.write(records);
+		} catch (Exception e) {
+			failures++;
+			Logger.error(e, "Shib: Unable to write " + records.size()
+					+ " user records, will retry in "
+					+ TimeUnit.NANOSECONDS.toMillis(backoff()) + "ms.");
+			for (UserRecord record : records)
+				// A newer record may have arrived meanwhile.
+				pending.putIfAbsent(record.principal, record);
+			return 0;
+		}
+		failures = 0;
+		for (int i = 0; i < records.size(); i++)
+			written.put(records.get(i).principal, digests.get(i));
+		return records.size();
+	}
+
+	/**
+	 * @return A SHA-256 digest of the attributes, as the jdbc sink formats
+	 *         them.
+	 */
+	private static byte[] digest(Map<String, String> attributes) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(
+					JdbcUserRecordSink.format(attributes).getBytes("UTF-8"));
+		} catch (Exception e) {
+			throw new UnexpectedException(e);
+		}
+	}
+
+	/**
+	 * @return How long to wait before the next flush, in nanoseconds: the
+	 *         interval, doubled for each failure in a row, up to MAX_BACKOFF
+	 *         times.
+	 */
+	private long backoff() {
+		return intervalNanos << Math.min(failures, MAX_BACKOFF);
+	}
+
+	/**
+	 * The background thread's loop.
+	 */
+	private void loop() {
+		while (running) {
+			long wait = backoff();
+			long until = System.nanoTime() + wait;
+			LockSupport.parkNanos(wait);
+			// While the sink is failing a full batch does not cut the wait
+			// short.
+			while (running && failures > 0 && until - System.nanoTime() > 0)
+				LockSupport.parkNanos(until - System.nanoTime());
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				Logger.error(e, "Shib: Unable to write user records.");
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Queue a user's record on the configured queue, if there is one.
+	 */
+	public static void submit(UserRecord record) {
+		WriteBehind queue = current;
+		if (queue != null)
+			queue.offer(record);
+	}
+
+	/**
+	 * @return True if user records are being written.
+	 */
+	public static boolean isEnabled() {
+		return current != null;
+	}
+
+	/**
+	 * Start (or restart) the queue from the configuration.
+	 */
+	static void start(Properties configuration) {
+		stop();
+		String type = configuration.getProperty("shib.records");
+		if (type == null)
+			return;
+
+		UserRecordSink sink;
+		if ("jdbc".equals(type)) {
+			sink = new JdbcUserRecordSink(configuration.getProperty(
+					"shib.records.table", "shibboleth_users"),
+					Boolean.parseBoolean(configuration.getProperty(
+							"shib.records.create", "false")));
+		} else {
+			try {
+				sink = (UserRecordSink) Play.classloader.loadClass(type)
+						.newInstance();
+			} catch (Exception e) {
+				throw new UnexpectedException("Unable to create shib.records "
+						+ type, e);
+			}
+		}
+
+		int batch = Integer.parseInt(configuration.getProperty(
+				"shib.records.batch", "100"));
+		long interval = Time.parseDuration(configuration.getProperty(
+				"shib.records.interval", "5s")) * 1000L;
+		int maxPending = Integer.parseInt(configuration.getProperty(
+				"shib.records.pending", "10000"));
+		current = new WriteBehind(sink, batch, interval, maxPending);
+		Logger.info("Shib: Writing user records to the " + type + " sink.");
+	}
+
+	/**
+	 * Stop the queue, writing any records still waiting.
+	 */
+	static void stop() {
+		WriteBehind queue = current;
+		current = null;
+		if (queue != null)
+			queue.close();
+	}
+}